@@ -0,0 +1,15 @@
+package net.roguelogix.phosphophyllite;
+
+/**
+ * Opens Phosphophyllite's harness only hooks to the headless multiblock harness, which lives in another package
+ */
+public class HarnessHooks {
+    
+    public static void advanceTick() {
+        Phosphophyllite.advanceTickForHarness();
+    }
+    
+    public static void forgetControllers() {
+        Phosphophyllite.forgetControllersForHarness();
+    }
+}
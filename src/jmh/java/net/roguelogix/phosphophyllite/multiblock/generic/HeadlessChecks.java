@@ -0,0 +1,42 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.core.BlockPos;
+
+/**
+ * Behaviour checks against the headless multiblock, not benchmarks, run the main method by hand, nothing in the build runs them
+ * <p>
+ * each check throws IllegalStateException when it fails
+ */
+public class HeadlessChecks {
+    
+    public static void main(String[] args) {
+        interiorBlockBroken();
+        System.out.println("All headless checks passed");
+    }
+    
+    /**
+     * Breaking a block inside an assembled multiblock that isn't part of it has to disassemble it
+     * the block change alone has to ask for the validation, nothing about the tiles changes
+     */
+    public static void interiorBlockBroken() {
+        LongArrayList positions = HeadlessMultiblock.Shape.HOLLOW_SHELL.positions(6 * 5 * 5);
+        HeadlessMultiblock world = new HeadlessMultiblock(positions);
+        world.requireInterior();
+        world.fillInterior();
+        HeadlessMultiblock.Controller controller = world.attachAll();
+        check(controller.assemblyState() == MultiblockController.AssemblyState.ASSEMBLED, "filled shell didn't assemble, " + controller.assemblyState());
+        
+        HeadlessMultiblock.advanceTick();
+        world.breakInterior(BlockPos.asLong(2, 2, 2), controller);
+        controller.update();
+        controller.runStructuralWork();
+        check(controller.assemblyState() == MultiblockController.AssemblyState.DISASSEMBLED, "breaking an interior block left it " + controller.assemblyState());
+    }
+    
+    private static void check(boolean condition, String failure) {
+        if (!condition) {
+            throw new IllegalStateException(failure);
+        }
+    }
+}
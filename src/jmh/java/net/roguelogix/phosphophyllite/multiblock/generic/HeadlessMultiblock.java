@@ -0,0 +1,375 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.block.state.BlockState;
+import net.roguelogix.phosphophyllite.HarnessHooks;
+import net.roguelogix.phosphophyllite.repack.org.joml.Vector3ic;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * In memory stand-in for a world full of multiblock tiles, no Level, no chunks, no registries, no server
+ * <p>
+ * tiles have no type, blockstate, or level, so anything that touches those can't be run here
+ * blocks that aren't tiles only exist as interior filler, see {@link #requireInterior()}
+ * attaching goes through AttachBatch, against the in memory tiles instead of the world's chunks
+ */
+public class HeadlessMultiblock {
+    
+    public enum Shape {
+        CUBE,
+        HOLLOW_SHELL,
+        LINE,
+        ;
+        
+        /**
+         * @return packed positions, x fastest then z then y, as close to the requested block count as the shape allows
+         */
+        public LongArrayList positions(int blocks) {
+            LongArrayList positions = new LongArrayList(blocks);
+            switch (this) {
+                case CUBE: {
+                    int side = Math.max(1, (int) Math.round(Math.cbrt(blocks)));
+                    for (int y = 0; y < side; y++) {
+                        for (int z = 0; z < side; z++) {
+                            for (int x = 0; x < side; x++) {
+                                positions.add(BlockPos.asLong(x, y, z));
+                            }
+                        }
+                    }
+                    break;
+                }
+                case HOLLOW_SHELL: {
+                    // surface of a cube is 6 * side^2, a million blocks needs a side of ~400
+                    int side = Math.max(3, (int) Math.round(Math.sqrt(blocks / 6.0)));
+                    for (int y = 0; y < side; y++) {
+                        for (int z = 0; z < side; z++) {
+                            for (int x = 0; x < side; x++) {
+                                if (x == 0 || x == side - 1 || y == 0 || y == side - 1 || z == 0 || z == side - 1) {
+                                    positions.add(BlockPos.asLong(x, y, z));
+                                }
+                            }
+                        }
+                    }
+                    break;
+                }
+                case LINE: {
+                    for (int x = 0; x < blocks; x++) {
+                        positions.add(BlockPos.asLong(x, 0, 0));
+                    }
+                    break;
+                }
+            }
+            return positions;
+        }
+    }
+    
+    public static class Tile extends MultiblockTile<Controller, Tile, Block> {
+        
+        private final HeadlessMultiblock world;
+        
+        @SuppressWarnings("ConstantConditions")
+        public Tile(HeadlessMultiblock world, BlockPos pos) {
+            super(null, pos, null);
+            this.world = world;
+        }
+        
+        // same as the real one, queued for the next tick, without the level
+        @Override
+        public void attemptAttach() {
+            controller = null;
+            world.toAttach.add(this);
+        }
+        
+        // queued tiles never have a controller here, attemptAttach already dropped it, and there is no blockstate to reset
+        @Override
+        boolean prepareAttach() {
+            return true;
+        }
+        
+        @Override
+        public Controller createController() {
+            return new Controller();
+        }
+        
+        // no block either, so only the position
+        @Override
+        long fingerprint() {
+            return getBlockPos().asLong();
+        }
+        
+        // there are no blockstates here, so nothing changes
+        @Override
+        protected BlockState assembledBlockState() {
+            return getBlockState();
+        }
+        
+        @Override
+        protected BlockState disassembledBlockState() {
+            return getBlockState();
+        }
+    }
+    
+    /**
+     * only here to fill in the type parameter, never created
+     */
+    public static abstract class Block extends MultiblockBlock<Controller, Tile, Block> {
+        private Block(Properties properties) {
+            super(properties);
+        }
+    }
+    
+    public static class Controller extends MultiblockController<Controller, Tile, Block> {
+        
+        @SuppressWarnings("ConstantConditions")
+        public Controller() {
+            super(null, tile -> tile instanceof Tile, block -> true);
+            // same shape rule as a rectangular multiblock, every exterior position has to be there
+            // the interior is anything, unless the world requires it to be filled
+            setAssemblyValidator(controller -> {
+                Tile anyTile = controller.blocks.getOne();
+                boolean interiorRequired = anyTile != null && anyTile.world.interiorRequired;
+                Vector3ic min = controller.minCoord();
+                Vector3ic max = controller.maxCoord();
+                for (int y = min.y(); y <= max.y(); y++) {
+                    boolean yExterior = y == min.y() || y == max.y();
+                    for (int z = min.z(); z <= max.z(); z++) {
+                        boolean zExterior = yExterior || z == min.z() || z == max.z();
+                        for (int x = min.x(); x <= max.x(); x++) {
+                            if (controller.blocks.getTile(x, y, z) != null) {
+                                continue;
+                            }
+                            if (zExterior || x == min.x() || x == max.x()) {
+                                return false;
+                            }
+                            if (interiorRequired && !anyTile.world.interior.contains(BlockPos.asLong(x, y, z))) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+                return true;
+            });
+        }
+        
+        public void validate() {
+            requestAssemblyValidation();
+            runStructuralWork();
+        }
+        
+        public void runStructuralWork() {
+            while (pendingStructuralWork() != StructuralWork.NONE) {
+                doStructuralWork();
+            }
+        }
+        
+        public int blockCount() {
+            return blocks.size();
+        }
+    }
+    
+    private final Long2ObjectOpenHashMap<Tile> tiles = new Long2ObjectOpenHashMap<>();
+    private final LongArrayList order;
+    private final Set<Controller> controllers = new LinkedHashSet<>();
+    private final ArrayList<Tile> toAttach = new ArrayList<>();
+    // blocks that aren't tiles, only looked at by the validator when interiorRequired
+    private final LongOpenHashSet interior = new LongOpenHashSet();
+    private boolean interiorRequired = false;
+    
+    /**
+     * Empty world, tiles are added with {@link #place(long)}
+     */
+    public HeadlessMultiblock() {
+        this(new LongArrayList());
+    }
+    
+    /**
+     * Creates the tiles, nothing is attached yet
+     */
+    public HeadlessMultiblock(LongArrayList positions) {
+        order = positions;
+        for (int i = 0; i < positions.size(); i++) {
+            long pos = positions.getLong(i);
+            tiles.put(pos, new Tile(this, BlockPos.of(pos)));
+        }
+    }
+    
+    public Tile tile(long pos) {
+        return tiles.get(pos);
+    }
+    
+    public LongArrayList positions() {
+        return order;
+    }
+    
+    /**
+     * Attaches every tile as one batch, like a chunk of tiles loading
+     * then runs structural work until there is none left, merges and the assembly validation included
+     *
+     * @return the controller the first tile ended up in
+     */
+    public Controller attachAll() {
+        ArrayList<Tile> attaching = new ArrayList<>(order.size());
+        for (int i = 0; i < order.size(); i++) {
+            attaching.add(tiles.get(order.getLong(i)));
+        }
+        attachBatch(attaching);
+        for (Controller controller : controllers) {
+            controller.runStructuralWork();
+        }
+        Controller controller = tiles.get(order.getLong(0)).controller;
+        controllers.clear();
+        forgetControllers();
+        return controller;
+    }
+    
+    /**
+     * AttachBatch, against the in memory tiles instead of the world's chunks
+     */
+    private void attachBatch(ArrayList<Tile> attaching) {
+        new AttachBatch(null) {
+            @Override
+            protected BlockEntity tileAt(BlockPos pos) {
+                return tiles.get(pos.asLong());
+            }
+        }.run(attaching);
+        for (Tile tile : attaching) {
+            if (tile.controller != null) {
+                controllers.add(tile.controller);
+            }
+        }
+    }
+    
+    /**
+     * Places a tile, or reloads it, it's attached on the next tick
+     */
+    public void place(long pos) {
+        Tile tile = tiles.get(pos);
+        if (tile == null) {
+            tile = new Tile(this, BlockPos.of(pos));
+            tiles.put(pos, tile);
+        }
+        toAttach.add(tile);
+    }
+    
+    /**
+     * Breaks or unloads a tile, detaching it from its controller
+     */
+    public void remove(long pos, boolean chunkUnload) {
+        Tile tile = tiles.remove(pos);
+        if (tile != null && tile.controller != null) {
+            tile.controller.detach(tile, chunkUnload);
+        }
+    }
+    
+    /**
+     * Advances the server tick number, once per server tick, not per world
+     */
+    public static void advanceTick() {
+        HarnessHooks.advanceTick();
+    }
+    
+    /**
+     * The world tick, every controller is updated, then queued tiles attach in the same order AttachBatch uses
+     * <p>
+     * structural work isn't budgeted here, it all happens in the tick it's asked for
+     */
+    public void tick() {
+        for (Controller controller : controllers) {
+            controller.update();
+        }
+        controllers.removeIf(controller -> controller.blockCount() == 0);
+        if (!toAttach.isEmpty()) {
+            ArrayList<Tile> attaching = new ArrayList<>(toAttach);
+            toAttach.clear();
+            // broken or unloaded since it was queued
+            attaching.removeIf(tile -> tiles.get(tile.getBlockPos().asLong()) != tile);
+            attachBatch(attaching);
+        }
+        forgetControllers();
+    }
+    
+    /**
+     * From now on, every interior position of a multiblock needs a tile or an interior block to assemble
+     */
+    public void requireInterior() {
+        interiorRequired = true;
+    }
+    
+    /**
+     * Fills every position in the bounding box of the tiles that doesn't have a tile with an interior block
+     */
+    public void fillInterior() {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (long pos : tiles.keySet()) {
+            minX = Math.min(minX, BlockPos.getX(pos));
+            minY = Math.min(minY, BlockPos.getY(pos));
+            minZ = Math.min(minZ, BlockPos.getZ(pos));
+            maxX = Math.max(maxX, BlockPos.getX(pos));
+            maxY = Math.max(maxY, BlockPos.getY(pos));
+            maxZ = Math.max(maxZ, BlockPos.getZ(pos));
+        }
+        for (int y = minY; y <= maxY; y++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int x = minX; x <= maxX; x++) {
+                    long pos = BlockPos.asLong(x, y, z);
+                    if (!tiles.containsKey(pos)) {
+                        interior.add(pos);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Breaks an interior block, telling the controller whose bounds it's in, like the neighbor notify event does
+     */
+    public void breakInterior(long pos, @Nonnull Controller controller) {
+        if (interior.remove(pos)) {
+            controller.blockChanged(BlockPos.of(pos));
+        }
+    }
+    
+    public int tileCount() {
+        return tiles.size();
+    }
+    
+    public int controllerCount() {
+        return controllers.size();
+    }
+    
+    /**
+     * Attaches the given tiles straight to a new controller, without looking at neighbors
+     */
+    public Controller attachDirect(LongArrayList positions) {
+        Controller controller = new Controller();
+        for (int i = 0; i < positions.size(); i++) {
+            controller.attemptAttach(tiles.get(positions.getLong(i)));
+        }
+        forgetControllers();
+        return controller;
+    }
+    
+    /**
+     * Controllers register with the server side tracking when created, with no level here they all go under null
+     * nothing here unloads that, so it would hold on to every controller made, and every tile in them
+     */
+    public static void forgetControllers() {
+        HarnessHooks.forgetControllers();
+    }
+    
+    /**
+     * Detaches a tile like its chunk unloading, the split check still sees it
+     */
+    public static void detach(@Nonnull Controller controller, Tile tile) {
+        controller.detach(tile, true);
+    }
+}
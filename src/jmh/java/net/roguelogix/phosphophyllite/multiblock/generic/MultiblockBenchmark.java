@@ -0,0 +1,182 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.roguelogix.phosphophyllite.util.AStarList;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Structural work on multiblocks from 10^3 to 10^6 blocks, headless, see {@link HeadlessMultiblock}
+ * <p>
+ * single shot, every invocation gets a freshly built structure, a million block setup isn't cheap
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8G"})
+public class MultiblockBenchmark {
+    
+    @State(Scope.Thread)
+    public static class Structure {
+        @Param({"1000", "10000", "100000", "1000000"})
+        public int blocks;
+        
+        @Param({"CUBE", "HOLLOW_SHELL", "LINE"})
+        public HeadlessMultiblock.Shape shape;
+        
+        LongArrayList positions;
+        
+        @Setup(Level.Trial)
+        public void createPositions() {
+            positions = shape.positions(blocks);
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Unattached {
+        HeadlessMultiblock world;
+        
+        @Setup(Level.Invocation)
+        public void setup(Structure structure) {
+            world = new HeadlessMultiblock(structure.positions);
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Attached {
+        HeadlessMultiblock world;
+        HeadlessMultiblock.Controller controller;
+        
+        @Setup(Level.Invocation)
+        public void setup(Structure structure) {
+            world = new HeadlessMultiblock(structure.positions);
+            controller = world.attachDirect(structure.positions);
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Halves {
+        HeadlessMultiblock.Controller first;
+        HeadlessMultiblock.Controller second;
+        
+        @Setup(Level.Invocation)
+        public void setup(Structure structure) {
+            HeadlessMultiblock world = new HeadlessMultiblock(structure.positions);
+            // positions are in y, z, x order, so each half is still in one piece
+            int middle = structure.positions.size() / 2;
+            first = world.attachDirect(new LongArrayList(structure.positions.subList(0, middle)));
+            second = world.attachDirect(new LongArrayList(structure.positions.subList(middle, structure.positions.size())));
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Cut {
+        HeadlessMultiblock.Controller controller;
+        
+        /**
+         * Removes every block in the middle x plane, which splits every shape in two
+         */
+        @Setup(Level.Invocation)
+        public void setup(Structure structure) {
+            HeadlessMultiblock world = new HeadlessMultiblock(structure.positions);
+            controller = world.attachDirect(structure.positions);
+            int maxX = 0;
+            for (int i = 0; i < structure.positions.size(); i++) {
+                maxX = Math.max(maxX, BlockPos.getX(structure.positions.getLong(i)));
+            }
+            int middleX = maxX / 2;
+            for (int i = 0; i < structure.positions.size(); i++) {
+                long pos = structure.positions.getLong(i);
+                if (BlockPos.getX(pos) == middleX) {
+                    HeadlessMultiblock.detach(controller, world.tile(pos));
+                }
+            }
+            HeadlessMultiblock.forgetControllers();
+        }
+    }
+    
+    /**
+     * Every tile attaching as one batch, then the merges and validation that follow
+     */
+    @Benchmark
+    public HeadlessMultiblock.Controller attach(Unattached unattached) {
+        return unattached.world.attachAll();
+    }
+    
+    /**
+     * Every tile detaching, like the whole structure unloading
+     */
+    @Benchmark
+    public HeadlessMultiblock.Controller detach(Attached attached) {
+        LongArrayList positions = attached.world.positions();
+        for (int i = 0; i < positions.size(); i++) {
+            HeadlessMultiblock.detach(attached.controller, attached.world.tile(positions.getLong(i)));
+        }
+        HeadlessMultiblock.forgetControllers();
+        return attached.controller;
+    }
+    
+    /**
+     * Only the merge itself, not the validation it asks for
+     */
+    @Benchmark
+    public HeadlessMultiblock.Controller merge(Halves halves) {
+        halves.first.controllersToMerge.add(halves.second);
+        halves.first.doStructuralWork();
+        HeadlessMultiblock.forgetControllers();
+        return halves.first;
+    }
+    
+    /**
+     * Only the split detection and detaching the piece that broke off, not the validation it asks for
+     */
+    @Benchmark
+    public HeadlessMultiblock.Controller split(Cut cut) {
+        cut.controller.doStructuralWork();
+        HeadlessMultiblock.forgetControllers();
+        return cut.controller;
+    }
+    
+    @Benchmark
+    public MultiblockController.AssemblyState validate(Attached attached) {
+        attached.controller.validate();
+        return attached.controller.assemblyState();
+    }
+    
+    @Benchmark
+    public void tileLookup(Attached attached, Blackhole blackhole) {
+        LongArrayList positions = attached.world.positions();
+        for (int i = 0; i < positions.size(); i++) {
+            blackhole.consume(attached.controller.blocks.getTile(positions.getLong(i)));
+        }
+    }
+    
+    /**
+     * Walks the structure from its first block towards its last with an AStarList
+     */
+    @Benchmark
+    public boolean aStar(Attached attached) {
+        LongArrayList positions = attached.world.positions();
+        AStarList list = new AStarList();
+        list.addTarget(BlockPos.of(positions.getLong(positions.size() - 1)));
+        list.addNode(BlockPos.of(positions.getLong(0)));
+        LongOpenHashSet visited = new LongOpenHashSet();
+        visited.add(positions.getLong(0));
+        while (!list.done()) {
+            BlockPos node = list.nextNode();
+            for (Direction direction : Direction.values()) {
+                BlockPos neighbor = node.relative(direction);
+                if (attached.controller.blocks.containsPos(neighbor) && visited.add(neighbor.asLong())) {
+                    list.addNode(neighbor);
+                }
+            }
+        }
+        return list.foundAll();
+    }
+}
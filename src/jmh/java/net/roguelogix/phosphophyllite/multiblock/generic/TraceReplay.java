@@ -0,0 +1,95 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+/**
+ * Replays a recorded {@link EditTrace} against headless worlds, one per dimension, at full speed
+ * <p>
+ * chunk loads and unloads are only counted, the attach and detach records for the tiles in them carry the work
+ * <p>
+ * run with the trace file as the only argument for a one off timing, or through {@link TraceReplayBenchmark}
+ */
+public class TraceReplay implements EditTrace.Visitor {
+    
+    private final HashMap<String, HeadlessMultiblock> worlds = new HashMap<>();
+    @Nullable
+    private HeadlessMultiblock world = null;
+    
+    public long ticks = 0;
+    public long attaches = 0;
+    public long detaches = 0;
+    public long chunkLoads = 0;
+    public long chunkUnloads = 0;
+    
+    public static TraceReplay replay(InputStream trace) throws IOException {
+        TraceReplay replay = new TraceReplay();
+        EditTrace.read(trace, replay);
+        return replay;
+    }
+    
+    private HeadlessMultiblock world() {
+        if (world == null) {
+            throw new IllegalStateException("Edit trace record before any level record");
+        }
+        return world;
+    }
+    
+    @Override
+    public void tick() {
+        HeadlessMultiblock.advanceTick();
+        for (HeadlessMultiblock world : worlds.values()) {
+            world.tick();
+        }
+        ticks++;
+    }
+    
+    @Override
+    public void level(String level) {
+        world = worlds.computeIfAbsent(level, k -> new HeadlessMultiblock());
+    }
+    
+    @Override
+    public void attach(long pos) {
+        world().place(pos);
+        attaches++;
+    }
+    
+    @Override
+    public void detach(long pos, boolean chunkUnload) {
+        world().remove(pos, chunkUnload);
+        detaches++;
+    }
+    
+    @Override
+    public void chunkLoad(long chunkPos) {
+        chunkLoads++;
+    }
+    
+    @Override
+    public void chunkUnload(long chunkPos) {
+        chunkUnloads++;
+    }
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TraceReplay <trace file>");
+            System.exit(1);
+        }
+        Path path = Paths.get(args[0]);
+        long startTime = System.nanoTime();
+        TraceReplay replay;
+        try (InputStream stream = Files.newInputStream(path)) {
+            replay = replay(stream);
+        }
+        long nanos = System.nanoTime() - startTime;
+        System.out.printf("Replayed %d ticks, %d attaches, %d detaches, %d chunk loads, %d chunk unloads in %.3fms%n",
+                replay.ticks, replay.attaches, replay.detaches, replay.chunkLoads, replay.chunkUnloads, nanos / 1_000_000.0);
+        replay.worlds.forEach((level, world) -> System.out.printf("%s: %d tiles, %d controllers%n", level, world.tileCount(), world.controllerCount()));
+    }
+}
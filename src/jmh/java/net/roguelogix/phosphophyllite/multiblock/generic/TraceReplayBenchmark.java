@@ -0,0 +1,41 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a recorded edit trace, pick it with -p trace=path/to/file.trace
+ * <p>
+ * the trace is read into memory once, so the file isn't part of the timing
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8G"})
+public class TraceReplayBenchmark {
+    
+    @Param("")
+    public String trace;
+    
+    private byte[] traceBytes;
+    
+    @Setup(Level.Trial)
+    public void readTrace() throws IOException {
+        if (trace.isEmpty()) {
+            throw new IllegalStateException("No trace given, pass one with -p trace=path/to/file.trace");
+        }
+        traceBytes = Files.readAllBytes(Paths.get(trace));
+    }
+    
+    @Benchmark
+    public TraceReplay replay() throws IOException {
+        return TraceReplay.replay(new ByteArrayInputStream(traceBytes));
+    }
+}
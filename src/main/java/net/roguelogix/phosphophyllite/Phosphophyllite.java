@@ -1,17 +1,34 @@
 package net.roguelogix.phosphophyllite;
 
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.network.chat.TextComponent;
 import net.minecraft.server.ServerResources;
 import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.chunk.LevelChunk;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.event.AddReloadListenerEvent;
+import net.minecraftforge.event.RegisterCommandsEvent;
 import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.world.BlockEvent;
+import net.minecraftforge.event.world.ChunkEvent;
 import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.loading.FMLLoader;
 import net.minecraftforge.fmlserverevents.FMLServerStoppedEvent;
+import net.minecraftforge.fmlserverevents.FMLServerStoppingEvent;
+import net.roguelogix.phosphophyllite.multiblock.generic.AttachBatch;
+import net.roguelogix.phosphophyllite.multiblock.generic.ControllerRegistry;
+import net.roguelogix.phosphophyllite.multiblock.generic.ControllerSectionIndex;
+import net.roguelogix.phosphophyllite.multiblock.generic.ControllerStats;
+import net.roguelogix.phosphophyllite.multiblock.generic.EditTrace;
+import net.roguelogix.phosphophyllite.multiblock.generic.IsolatedTickBatch;
 import net.roguelogix.phosphophyllite.multiblock.generic.MultiblockController;
+import net.roguelogix.phosphophyllite.multiblock.generic.MultiblockJFREvents;
 import net.roguelogix.phosphophyllite.multiblock.generic.MultiblockTile;
 import net.roguelogix.phosphophyllite.registry.Registry;
 import net.roguelogix.phosphophyllite.threading.Queues;
@@ -19,9 +36,17 @@ import net.roguelogix.phosphophyllite.threading.WorkQueue;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings("unused")
 @Mod(Phosphophyllite.modid)
@@ -62,29 +87,157 @@ public class Phosphophyllite {
         dataPackRegistries = reloadListenerEvent.getDataPackRegistries();
     }
     
+    // saves from here on are the last ones, so multiblocks save current NBT instead of their last snapshot
+    private static boolean serverStopping = false;
+    
+    public static boolean isServerStopping() {
+        return serverStopping;
+    }
+    
+    @SubscribeEvent
+    public void onServerStopping(FMLServerStoppingEvent serverStoppingEvent) {
+        serverStopping = true;
+    }
+    
     @SubscribeEvent
     public void onServerStopped(FMLServerStoppedEvent serverStoppedEvent) {
+        serverStopping = false;
         dataPackRegistries = null;
+        try {
+            EditTrace.stopRecording();
+        } catch (IOException e) {
+            LOGGER.error("Failed to finish multiblock edit trace", e);
+        }
     }
     
     public static long tickNumber() {
         return tick;
     }
     
+    /**
+     * Headless harness only, one server tick passing
+     */
+    static void advanceTickForHarness() {
+        tick++;
+    }
+    
+    /**
+     * Headless harness only, drops every tracked controller, nothing unloads the null level they register under there
+     */
+    static void forgetControllersForHarness() {
+        controllersToTick.clear();
+    }
+    
     public static final WorkQueue serverQueue = Queues.serverThread;
     
-    private static final HashMap<ServerLevel, ArrayList<MultiblockController<?, ?, ?>>> controllersToTick = new HashMap<>();
+    private static final HashMap<ServerLevel, ControllerRegistry> controllersToTick = new HashMap<>();
     private static final HashMap<ServerLevel, ArrayList<MultiblockTile<?, ?, ?>>> tilesToAttach = new HashMap<>();
-    private static final ArrayList<MultiblockController<?, ?, ?>> newControllers = new ArrayList<>();
-    private static final ArrayList<MultiblockController<?, ?, ?>> oldControllers = new ArrayList<>();
+    private static final HashMap<ServerLevel, ControllerSectionIndex> controllerIndexes = new HashMap<>();
     private static final ArrayList<MultiblockTile<?, ?, ?>> newTiles = new ArrayList<>();
     
+    // controllers with structural work left over, in the order they started waiting
+    private static final HashMap<ServerLevel, LinkedHashSet<MultiblockController<?, ?, ?>>> structuralBacklog = new HashMap<>();
+    // started by each world with AsyncLevelTicks, finished at the end of the server tick, in the order the worlds ticked
+    private static final ArrayList<IsolatedTickBatch> runningIsolatedTicks = new ArrayList<>();
+    private static ForkJoinPool controllerTickPool = null;
+    
+    private static ForkJoinPool controllerTickPool() {
+        if (controllerTickPool == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1); // if possible, leave a core for the main server thread
+            AtomicInteger threadNumber = new AtomicInteger();
+            controllerTickPool = new ForkJoinPool(threads, pool -> {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                };
+                thread.setName("Phosphophyllite Controller Tick Thread #" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                // default is the system classloader, which cant see mod classes
+                thread.setContextClassLoader(Phosphophyllite.class.getClassLoader());
+                return thread;
+            }, null, false);
+        }
+        return controllerTickPool;
+    }
+    
+    /**
+     * Works through the backlog oldest first, all splits, then merges, then validations, until the time budget runs out
+     * a controller with more than one kind of work pending gets them done in that order too
+     * if the backlog is deeper than configured, work keeps going past the budget until it isn't
+     */
+    private static void runStructuralWork(LinkedHashSet<MultiblockController<?, ?, ?>> backlog) {
+        if (backlog.isEmpty()) {
+            return;
+        }
+        final long startTime = System.nanoTime();
+        final long budget = (long) (PhosphophylliteConfig.Multiblock.StructuralWorkBudgetMS * 1_000_000);
+        boolean didWork = false;
+        for (MultiblockController.StructuralWork work : MultiblockController.StructuralWork.values()) {
+            if (work == MultiblockController.StructuralWork.NONE) {
+                break;
+            }
+            Iterator<MultiblockController<?, ?, ?>> iterator = backlog.iterator();
+            while (iterator.hasNext()) {
+                MultiblockController<?, ?, ?> controller = iterator.next();
+                MultiblockController.StructuralWork pendingWork = controller.pendingStructuralWork();
+                if (pendingWork == MultiblockController.StructuralWork.NONE) {
+                    iterator.remove();
+                    continue;
+                }
+                if (pendingWork != work) {
+                    continue;
+                }
+                // always make some progress, no matter how small the budget is
+                if (didWork && System.nanoTime() - startTime > budget && backlog.size() <= PhosphophylliteConfig.Multiblock.StructuralWorkBacklogDepth) {
+                    return;
+                }
+                controller.doStructuralWork();
+                didWork = true;
+                if (controller.pendingStructuralWork() == MultiblockController.StructuralWork.NONE) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Starts ticking the controller with its world, safe to call while that world is ticking, it starts with the next one
+     */
     public static void addController(MultiblockController<?, ?, ?> controller) {
-        newControllers.add(controller);
+        controllersToTick.computeIfAbsent((ServerLevel) controller.getWorld(), k -> new ControllerRegistry()).add(controller);
     }
     
+    /**
+     * Stops ticking the controller, safe to call while its world is ticking, calling it more than once does nothing
+     */
     public static void removeController(MultiblockController<?, ?, ?> controller) {
-        oldControllers.add(controller);
+        //noinspection SuspiciousMethodCalls
+        ControllerRegistry controllers = controllersToTick.get(controller.getWorld());
+        if (controllers != null) {
+            controllers.remove(controller);
+        }
+        //noinspection SuspiciousMethodCalls
+        ControllerSectionIndex index = controllerIndexes.get(controller.getWorld());
+        if (index != null) {
+            index.remove(controller);
+        }
+    }
+    
+    /**
+     * Stops ticking the controller until it's woken, it stays in its world's section index, so block changes still wake it
+     */
+    public static void sleepController(MultiblockController<?, ?, ?> controller, long wakeAtTick) {
+        //noinspection SuspiciousMethodCalls
+        ControllerRegistry controllers = controllersToTick.get(controller.getWorld());
+        if (controllers != null) {
+            controllers.sleep(controller, wakeAtTick);
+        }
+    }
+    
+    public static void wakeController(MultiblockController<?, ?, ?> controller) {
+        //noinspection SuspiciousMethodCalls
+        ControllerRegistry controllers = controllersToTick.get(controller.getWorld());
+        if (controllers != null) {
+            controllers.wake(controller);
+        }
     }
     
     public static void attachTile(MultiblockTile<?, ?, ?> tile) {
@@ -95,21 +248,127 @@ public class Phosphophyllite {
     void onWorldUnload(final WorldEvent.Unload worldUnloadEvent) {
         if (!worldUnloadEvent.getWorld().isClientSide()) {
             //noinspection SuspiciousMethodCalls
-            ArrayList<MultiblockController<?, ?, ?>> controllersToTick = Phosphophyllite.controllersToTick.remove(worldUnloadEvent.getWorld());
+            ControllerRegistry controllersToTick = Phosphophyllite.controllersToTick.remove(worldUnloadEvent.getWorld());
             if (controllersToTick != null) {
-                for (MultiblockController<?, ?, ?> multiblockController : controllersToTick) {
-                    multiblockController.suicide();
-                }
+                controllersToTick.forEachIncludingAsleep(MultiblockController::suicide);
             }
+            //noinspection SuspiciousMethodCalls
+            structuralBacklog.remove(worldUnloadEvent.getWorld());
+            //noinspection SuspiciousMethodCalls
+            controllerIndexes.remove(worldUnloadEvent.getWorld());
             // apparently, stragglers can exist
             //noinspection SuspiciousMethodCalls
             tilesToAttach.remove(worldUnloadEvent.getWorld());
-            newControllers.removeIf(multiblockController -> multiblockController.getWorld() == worldUnloadEvent.getWorld());
-            oldControllers.removeIf(multiblockController -> multiblockController.getWorld() == worldUnloadEvent.getWorld());
             newTiles.removeIf(multiblockTile -> multiblockTile.getLevel() == worldUnloadEvent.getWorld());
         }
     }
     
+    @SubscribeEvent
+    void onRegisterCommands(final RegisterCommandsEvent registerCommandsEvent) {
+        registerCommandsEvent.getDispatcher().register(Commands.literal(modid).requires(source -> source.hasPermission(2))
+                .then(Commands.literal("top")
+                        .executes(context -> listTopControllers(context.getSource(), 10))
+                        .then(Commands.argument("count", IntegerArgumentType.integer(1))
+                                .executes(context -> listTopControllers(context.getSource(), IntegerArgumentType.getInteger(context, "count")))))
+                .then(Commands.literal("classes")
+                        .executes(context -> listControllerClasses(context.getSource())))
+                .then(Commands.literal("trace")
+                        .then(Commands.literal("start").executes(context -> startEditTrace(context.getSource())))
+                        .then(Commands.literal("stop").executes(context -> stopEditTrace(context.getSource())))));
+    }
+    
+    private static int startEditTrace(CommandSourceStack source) {
+        try {
+            File file = EditTrace.startRecording();
+            source.sendSuccess(new TextComponent("Recording multiblock edits to " + file), true);
+            return 1;
+        } catch (IOException e) {
+            LOGGER.error("Failed to start multiblock edit trace", e);
+            source.sendFailure(new TextComponent("Failed to start multiblock edit trace: " + e.getMessage()));
+            return 0;
+        }
+    }
+    
+    private static int stopEditTrace(CommandSourceStack source) {
+        try {
+            File file = EditTrace.stopRecording();
+            if (file == null) {
+                source.sendFailure(new TextComponent("No multiblock edit trace recording"));
+                return 0;
+            }
+            source.sendSuccess(new TextComponent("Multiblock edit trace written to " + file), true);
+            return 1;
+        } catch (IOException e) {
+            LOGGER.error("Failed to finish multiblock edit trace", e);
+            source.sendFailure(new TextComponent("Failed to finish multiblock edit trace: " + e.getMessage()));
+            return 0;
+        }
+    }
+    
+    /**
+     * Lists the controllers with the highest recent update and tick time, across every world
+     */
+    private static int listTopControllers(CommandSourceStack source, int count) {
+        ArrayList<MultiblockController<?, ?, ?>> controllers = new ArrayList<>();
+        controllersToTick.values().forEach(registry -> registry.forEachIncludingAsleep(controllers::add));
+        controllers.sort(Comparator.comparingDouble((MultiblockController<?, ?, ?> controller) -> controller.stats().recentMillisPerTick()).reversed());
+        if (controllers.isEmpty()) {
+            source.sendSuccess(new TextComponent("No multiblock controllers loaded"), false);
+            return 0;
+        }
+        count = Math.min(count, controllers.size());
+        for (int i = 0; i < count; i++) {
+            MultiblockController<?, ?, ?> controller = controllers.get(i);
+            ControllerStats stats = controller.stats();
+            source.sendSuccess(new TextComponent(String.format("#%d %s in %s at %s: %.3fms/t recent, %.3fms/t average, %s",
+                    controller.id(), controller.getClass().getSimpleName(), controller.getWorld().dimension().location(),
+                    controller.minCoord(), stats.recentMillisPerTick(), stats.averageMillisPerTick(), controller.assemblyState())), false);
+        }
+        return count;
+    }
+    
+    /**
+     * Lists the totals for every controller class, highest total time first
+     */
+    private static int listControllerClasses(CommandSourceStack source) {
+        ArrayList<Map.Entry<Class<?>, ControllerStats>> classes = new ArrayList<>();
+        ControllerStats.forEachClass((controllerClass, stats) -> classes.add(Map.entry(controllerClass, stats)));
+        classes.sort(Comparator.comparingDouble((Map.Entry<Class<?>, ControllerStats> entry) -> entry.getValue().totalMillis()).reversed());
+        for (Map.Entry<Class<?>, ControllerStats> entry : classes) {
+            source.sendSuccess(new TextComponent(entry.getKey().getName() + "\n" + entry.getValue().describe()), false);
+        }
+        return classes.size();
+    }
+    
+    @SubscribeEvent
+    void onChunkLoad(final ChunkEvent.Load chunkLoadEvent) {
+        if (chunkLoadEvent.getWorld() instanceof Level && !chunkLoadEvent.getWorld().isClientSide() && chunkLoadEvent.getChunk() instanceof LevelChunk) {
+            EditTrace.recordChunkLoad((Level) chunkLoadEvent.getWorld(), chunkLoadEvent.getChunk().getPos());
+        }
+    }
+    
+    @SubscribeEvent
+    void onChunkUnload(final ChunkEvent.Unload chunkUnloadEvent) {
+        if (chunkUnloadEvent.getWorld() instanceof Level && !chunkUnloadEvent.getWorld().isClientSide() && chunkUnloadEvent.getChunk() instanceof LevelChunk) {
+            EditTrace.recordChunkUnload((Level) chunkUnloadEvent.getWorld(), chunkUnloadEvent.getChunk().getPos());
+            // fired before the chunk is saved, the tiles are unloaded after
+            for (BlockEntity blockEntity : ((LevelChunk) chunkUnloadEvent.getChunk()).getBlockEntities().values()) {
+                if (blockEntity instanceof MultiblockTile) {
+                    ((MultiblockTile<?, ?, ?>) blockEntity).onChunkUnloading();
+                }
+            }
+        }
+    }
+    
+    @SubscribeEvent
+    void onNeighborNotify(final BlockEvent.NeighborNotifyEvent neighborNotifyEvent) {
+        //noinspection SuspiciousMethodCalls
+        ControllerSectionIndex index = controllerIndexes.get(neighborNotifyEvent.getWorld());
+        if (index != null) {
+            index.blockChanged(neighborNotifyEvent.getPos());
+        }
+    }
+    
     @SubscribeEvent
     public void advanceTick(TickEvent.ServerTickEvent e) {
         if (!e.side.isServer()) {
@@ -118,20 +377,15 @@ public class Phosphophyllite {
         if (e.phase != TickEvent.Phase.END) {
             return;
         }
+        for (IsolatedTickBatch batch : runningIsolatedTicks) {
+            batch.finish();
+        }
+        runningIsolatedTicks.clear();
         tick++;
+        EditTrace.recordTick();
         
         Queues.serverThread.runAll();
-
-        for (MultiblockController<?, ?, ?> newController : newControllers) {
-            controllersToTick.computeIfAbsent((ServerLevel) newController.getWorld(), k -> new ArrayList<>()).add(newController);
-        }
-        newControllers.clear();
-        for (MultiblockController<?, ?, ?> oldController : oldControllers) {
-            //noinspection SuspiciousMethodCalls
-            ArrayList<MultiblockController<?, ?, ?>> controllers = controllersToTick.get(oldController.getWorld());
-            controllers.remove(oldController);
-        }
-        oldControllers.clear();
+        
         for (MultiblockTile<?, ?, ?> newTile : newTiles) {
             tilesToAttach.computeIfAbsent((ServerLevel) newTile.getLevel(), k -> new ArrayList<>()).add(newTile);
         }
@@ -147,24 +401,54 @@ public class Phosphophyllite {
             return;
         }
         
-        ArrayList<MultiblockController<?, ?, ?>> controllersToTick = Phosphophyllite.controllersToTick.get(e.world);
+        ControllerRegistry controllersToTick = Phosphophyllite.controllersToTick.get(e.world);
+        IsolatedTickBatch isolatedTicks = new IsolatedTickBatch();
         if (controllersToTick != null) {
-            for (MultiblockController<?, ?, ?> controller : controllersToTick) {
-                if (controller != null) {
-                    controller.update();
+            LinkedHashSet<MultiblockController<?, ?, ?>> structuralBacklog = Phosphophyllite.structuralBacklog.computeIfAbsent((ServerLevel) e.world, k -> new LinkedHashSet<>());
+            controllersToTick.wakeTimers(tick);
+            // ticks always run, only the structural work is budgeted
+            controllersToTick.forEach(controller -> {
+                if (!controller.beginTick()) {
+                    return;
+                }
+                if (controller.isTickIsolated() && controller.assemblyState() == MultiblockController.AssemblyState.ASSEMBLED) {
+                    isolatedTicks.add(controller);
+                } else {
+                    controller.updateTick();
+                }
+                if (controller.pendingStructuralWork() != MultiblockController.StructuralWork.NONE) {
+                    structuralBacklog.add(controller);
                 }
+            });
+            if (!isolatedTicks.isEmpty() && !PhosphophylliteConfig.Multiblock.AsyncLevelTicks) {
+                isolatedTicks.run(controllerTickPool(), PhosphophylliteConfig.Multiblock.ParallelIsolatedTicks);
             }
+            runStructuralWork(structuralBacklog);
         }
         
         ArrayList<MultiblockTile<?, ?, ?>> tilesToAttach = Phosphophyllite.tilesToAttach.get(e.world);
-        if (tilesToAttach != null) {
-            tilesToAttach.sort(Comparator.comparing(BlockEntity::getBlockPos));
-            for (MultiblockTile<?, ?, ?> toAttach : tilesToAttach) {
-                if (toAttach != null) {
-                    toAttach.attachToNeighbors();
-                }
+        if (tilesToAttach != null && !tilesToAttach.isEmpty()) {
+            MultiblockJFREvents.AttachBatch attachEvent = new MultiblockJFREvents.AttachBatch();
+            attachEvent.begin();
+            AttachBatch.attach(e.world, tilesToAttach);
+            attachEvent.end();
+            if (attachEvent.shouldCommit()) {
+                attachEvent.tiles = tilesToAttach.size();
+                attachEvent.blockCount = tilesToAttach.size();
+                attachEvent.commit();
             }
             tilesToAttach.clear();
         }
+        
+        if (controllersToTick != null) {
+            // bounds only move in structural work, which is done for this tick
+            ControllerSectionIndex index = controllerIndexes.computeIfAbsent((ServerLevel) e.world, k -> new ControllerSectionIndex());
+            controllersToTick.forEach(index::update);
+            if (!isolatedTicks.isEmpty() && PhosphophylliteConfig.Multiblock.AsyncLevelTicks) {
+                // everything else this world does with its multiblocks this tick is done, the ticks can run while the other worlds tick
+                isolatedTicks.start(controllerTickPool(), PhosphophylliteConfig.Multiblock.ParallelIsolatedTicks);
+                runningIsolatedTicks.add(isolatedTicks);
+            }
+        }
     }
 }
\ No newline at end of file
@@ -21,8 +21,39 @@ public class PhosphophylliteConfig {
         public static long UpdateIntervalMS = 200;
     }
     
-//    public static class Multiblock{
+    @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig
+    public static class Multiblock {
 //        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value
 //        public static boolean StrictNBTConsistency = true;
-//    }
+        
+        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value(comment = "Scan the blocks of rectangular multiblocks off the server thread when checking if they are assembled\nThe multiblock stays in its current state until the scan finishes", advanced = true)
+        public static boolean OffThreadValidation = true;
+        
+        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value(comment = "Multiblocks with a smaller bounding box volume than this are scanned on the server thread", range = "[0,)", advanced = true)
+        public static long OffThreadValidationMinVolume = 4096;
+        
+        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value(comment = "Rectangular multiblocks only recheck blocks that had a block update since their last scan, this many times in a row, then scan every block again\nBlocks set without a block update, like some mods and worldgen do, are only seen by those full scans\nAssembling always comes from a full scan, 1 scans every block every time", range = "[1,)", advanced = true)
+        public static long FullScanInterval = 64;
+        
+        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value(comment = "Tick multiblocks that declare their tick isolated in parallel\nTheir tiles are still ticked on the server thread", advanced = true)
+        public static boolean ParallelIsolatedTicks = true;
+        
+        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value(comment = "Let each world's isolated multiblock ticks keep running while the worlds after it tick, instead of waiting for them in the world's own tick\nSo worlds tick their multiblocks at the same time, they are all finished at the end of the server tick\nStructural work in a world runs before its isolated ticks start instead of after", advanced = true)
+        public static boolean AsyncLevelTicks = false;
+        
+        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value(comment = "Time each world gets per tick for multiblock structural work, splits, merges, and assembly checks\nWork past this is put off to the next tick, ticking assembled multiblocks is never put off", range = "[0,)", advanced = true)
+        public static double StructuralWorkBudgetMS = 10;
+        
+        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value(comment = "How many multiblocks can have structural work put off to a later tick\nPast this, work is done regardless of the time budget", range = "[0,)", advanced = true)
+        public static long StructuralWorkBacklogDepth = 256;
+        
+        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value(comment = "Blocks per tick each multiblock updates the blockstates of when it assembles or disassembles\nBigger multiblocks change their blocks over multiple ticks, the multiblock itself changes immediately\n0 for no limit", range = "[0,)", advanced = true)
+        public static long BlockStatesPerTick = 16384;
+        
+        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value(comment = "Ticks before each autosave that multiblocks snapshot their NBT, it's encoded in the background and the autosave uses it as is\nOnly multiblocks that have changed since they were last saved do this, anything after the snapshot is saved by the next save\nUnloading and stopping the server always save current NBT", range = "[1,)", advanced = true)
+        public static long NBTSnapshotInterval = 20;
+        
+        @net.roguelogix.phosphophyllite.config.PhosphophylliteConfig.Value(comment = "Resume multiblocks without validating them when they reload with exactly the blocks they had when they unloaded\nChecked with a block count, bounds, and a hash of their blocks saved with them\nBlocks set without a block update aren't seen by the check, so a full validation still runs on the tick after the resume", advanced = true)
+        public static boolean ResumeFromFingerprint = true;
+    }
 }
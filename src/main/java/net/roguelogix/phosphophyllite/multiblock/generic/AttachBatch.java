@@ -0,0 +1,236 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.entity.BlockEntity;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkStatus;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One tick's worth of tiles attaching in a level, grouped by chunk, then section, then position
+ * <p>
+ * the tiles are flood filled into connected pieces, and each piece gets one controller, an existing neighbor's or a new one
+ * so a chunk of tiles loading doesn't create a controller for every tile that doesn't see an earlier one, just to merge them all again
+ * <p>
+ * neighbor lookups go through a chunk cache kept for the whole batch, consecutive tiles are almost always in the same chunk
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class AttachBatch {
+    
+    private static final Direction[] DIRECTIONS = Direction.values();
+    
+    @Nullable
+    private final Level level;
+    // null for chunks that aren't loaded, those don't load during a tick
+    private final Long2ObjectOpenHashMap<ChunkAccess> chunks = new Long2ObjectOpenHashMap<>();
+    private long lastChunkKey;
+    @Nullable
+    private ChunkAccess lastChunk = null;
+    
+    /**
+     * @param level only null if tileAt is overridden
+     */
+    protected AttachBatch(@Nullable Level level) {
+        this.level = level;
+        // not a real chunk position, so the first lookup goes to the map
+        lastChunkKey = ChunkPos.asLong(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Sorts the tiles into attach order and attaches them, null entries are skipped
+     */
+    public static void attach(Level level, ArrayList<? extends MultiblockTile<?, ?, ?>> tiles) {
+        new AttachBatch(level).run(tiles);
+    }
+    
+    protected void run(ArrayList<? extends MultiblockTile<?, ?, ?>> tiles) {
+        sort(tiles);
+        ArrayList<MultiblockTile<?, ?, ?>> attaching = new ArrayList<>(tiles.size());
+        for (MultiblockTile<?, ?, ?> tile : tiles) {
+            if (tile == null) {
+                continue;
+            }
+            boolean fromDetach = tile.attachFromDetach;
+            tile.attachFromDetach = false;
+            if (tile.prepareAttach()) {
+                // only tiles that really attach, a broken block is queued by its detach too, but can't attach anymore
+                if (level != null && !fromDetach) {
+                    EditTrace.recordAttach(level, tile.getBlockPos());
+                }
+                tile.inAttachBatch = true;
+                attaching.add(tile);
+            }
+        }
+        ArrayDeque<MultiblockTile<?, ?, ?>> piece = new ArrayDeque<>();
+        for (MultiblockTile<?, ?, ?> tile : attaching) {
+            if (!tile.inAttachBatch) {
+                // already part of an earlier piece
+                continue;
+            }
+            tile.inAttachBatch = false;
+            if (!attachToNeighborController(tile)) {
+                tile.createController().attemptAttach(tile);
+                if (tile.controller == null) {
+                    continue;
+                }
+            }
+            piece.add(tile);
+            while (!piece.isEmpty()) {
+                attachNeighbors(piece.poll(), piece);
+            }
+        }
+    }
+    
+    /**
+     * @return if the tile joined a neighbor's controller
+     */
+    private boolean attachToNeighborController(MultiblockTile<?, ?, ?> tile) {
+        BlockPos.MutableBlockPos neighborPos = new BlockPos.MutableBlockPos();
+        for (Direction direction : DIRECTIONS) {
+            neighborPos.setWithOffset(tile.getBlockPos(), direction);
+            BlockEntity neighbor = tileAt(neighborPos);
+            if (neighbor instanceof MultiblockTile && ((MultiblockTile<?, ?, ?>) neighbor).controller != null) {
+                ((MultiblockTile<?, ?, ?>) neighbor).controller.attemptAttach(tile);
+                if (tile.controller != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Same as MultiblockTile.attachToNeighbors did per tile, except unattached tiles in the batch are taken into this tile's controller
+     * neighbors with another controller get the chance to take this tile too, which queues a merge if they would
+     */
+    private void attachNeighbors(MultiblockTile<?, ?, ?> tile, ArrayDeque<MultiblockTile<?, ?, ?>> piece) {
+        assert tile.controller != null;
+        BlockPos.MutableBlockPos neighborPos = new BlockPos.MutableBlockPos();
+        for (Direction direction : DIRECTIONS) {
+            neighborPos.setWithOffset(tile.getBlockPos(), direction);
+            BlockEntity possibleTile = tileAt(neighborPos);
+            if (!(possibleTile instanceof MultiblockTile)) {
+                continue;
+            }
+            MultiblockTile<?, ?, ?> neighbor = (MultiblockTile<?, ?, ?>) possibleTile;
+            if (neighbor.controller != null) {
+                neighbor.controller.attemptAttach(tile);
+            } else if (neighbor.inAttachBatch) {
+                tile.controller.attemptAttach(neighbor);
+                if (neighbor.controller != null) {
+                    neighbor.inAttachBatch = false;
+                    piece.add(neighbor);
+                }
+            } else {
+                neighbor.attemptAttach = true;
+            }
+        }
+    }
+    
+    /**
+     * The tile at the position, or null if there isn't one or its chunk isn't loaded
+     */
+    @Nullable
+    protected BlockEntity tileAt(BlockPos pos) {
+        ChunkAccess chunk = chunk(pos.getX() >> 4, pos.getZ() >> 4);
+        return chunk == null ? null : chunk.getBlockEntity(pos);
+    }
+    
+    /**
+     * Same as level.getChunk(chunkX, chunkZ, ChunkStatus.FULL, false), looked up once per batch
+     */
+    @Nullable
+    private ChunkAccess chunk(int chunkX, int chunkZ) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        if (key == lastChunkKey) {
+            return lastChunk;
+        }
+        ChunkAccess chunk = chunks.get(key);
+        if (chunk == null && !chunks.containsKey(key)) {
+            assert level != null;
+            chunk = level.getChunk(chunkX, chunkZ, ChunkStatus.FULL, false);
+            chunks.put(key, chunk);
+        }
+        lastChunkKey = key;
+        lastChunk = chunk;
+        return chunk;
+    }
+    
+    /**
+     * chunk x and z, 22 bits each, section y, 8 bits, then the position in the section, y z x, 12 bits
+     * compared unsigned, so the signed parts are offset to start at 0
+     */
+    public static long sortKey(BlockPos pos) {
+        int x = pos.getX(), y = pos.getY(), z = pos.getZ();
+        long chunkX = ((x >> 4) + (1 << 21)) & 0x3FFFFF;
+        long chunkZ = ((z >> 4) + (1 << 21)) & 0x3FFFFF;
+        long sectionY = ((y >> 4) + (1 << 7)) & 0xFF;
+        long local = (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+        return chunkX << 42 | chunkZ << 20 | sectionY << 12 | local;
+    }
+    
+    /**
+     * Sorts by sortKey, with an LSD radix sort over the packed keys, null entries end up at the end
+     */
+    public static <T extends BlockEntity> void sort(List<T> tiles) {
+        final int size = tiles.size();
+        if (size < 2) {
+            return;
+        }
+        long[] keys = new long[size];
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            T tile = tiles.get(i);
+            keys[i] = tile == null ? -1 : sortKey(tile.getBlockPos());
+            order[i] = i;
+        }
+        long[] keyBuffer = new long[size];
+        int[] orderBuffer = new int[size];
+        int[] counts = new int[256];
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i++) {
+                counts[(int) (keys[i] >>> shift) & 255]++;
+            }
+            if (counts[(int) (keys[0] >>> shift) & 255] == size) {
+                // every key has the same byte here, nothing would move
+                continue;
+            }
+            int total = 0;
+            for (int i = 0; i < 256; i++) {
+                int count = counts[i];
+                counts[i] = total;
+                total += count;
+            }
+            for (int i = 0; i < size; i++) {
+                int bucket = (int) (keys[i] >>> shift) & 255;
+                int destination = counts[bucket]++;
+                keyBuffer[destination] = keys[i];
+                orderBuffer[destination] = order[i];
+            }
+            long[] swapKeys = keys;
+            keys = keyBuffer;
+            keyBuffer = swapKeys;
+            int[] swapOrder = order;
+            order = orderBuffer;
+            orderBuffer = swapOrder;
+        }
+        Object[] unsorted = tiles.toArray();
+        for (int i = 0; i < size; i++) {
+            //noinspection unchecked
+            tiles.set(i, (T) unsorted[order[i]]);
+        }
+    }
+}
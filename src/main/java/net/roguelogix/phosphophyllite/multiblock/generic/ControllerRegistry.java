@@ -0,0 +1,154 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * The controllers of one level, in the order they were added, each knowing its own slot
+ * <p>
+ * adding and removing are constant time, and both are safe during forEach
+ * controllers added during forEach aren't visited until the next one, removed ones aren't visited past their removal
+ * removal leaves an empty slot, they are compacted away, keeping the order, once they outnumber the live controllers and nothing is iterating
+ * <p>
+ * asleep controllers are held aside, forEach doesn't visit them until they are woken, by hand or by their timer
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class ControllerRegistry {
+    
+    private MultiblockController<?, ?, ?>[] slots = new MultiblockController<?, ?, ?>[16];
+    // slots in use, including empty ones
+    private int end = 0;
+    private int size = 0;
+    private int iterating = 0;
+    private final LinkedHashSet<MultiblockController<?, ?, ?>> asleep = new LinkedHashSet<>();
+    // tick to wake at, controllers woken or removed since are skipped when it comes
+    private final TreeMap<Long, ArrayList<MultiblockController<?, ?, ?>>> wakeTimers = new TreeMap<>();
+    
+    public void add(MultiblockController<?, ?, ?> controller) {
+        if (controller.registrySlot != -1) {
+            return;
+        }
+        if (end == slots.length) {
+            slots = Arrays.copyOf(slots, slots.length * 2);
+        }
+        controller.registrySlot = end;
+        slots[end++] = controller;
+        size++;
+    }
+    
+    public void remove(MultiblockController<?, ?, ?> controller) {
+        if (asleep.remove(controller)) {
+            return;
+        }
+        int slot = controller.registrySlot;
+        // not in this registry, or already removed
+        if (slot < 0 || slot >= end || slots[slot] != controller) {
+            return;
+        }
+        slots[slot] = null;
+        controller.registrySlot = -1;
+        size--;
+        compactIfNeeded();
+    }
+    
+    /**
+     * Takes an awake controller out of forEach until it's woken
+     *
+     * @param wakeAtTick tick number to wake it at, or 0 to only be woken by hand
+     */
+    public void sleep(MultiblockController<?, ?, ?> controller, long wakeAtTick) {
+        int slot = controller.registrySlot;
+        if (slot < 0 || slot >= end || slots[slot] != controller) {
+            return;
+        }
+        remove(controller);
+        asleep.add(controller);
+        if (wakeAtTick > 0) {
+            wakeTimers.computeIfAbsent(wakeAtTick, k -> new ArrayList<>()).add(controller);
+        }
+    }
+    
+    /**
+     * Puts an asleep controller back, it's visited from the next forEach on
+     */
+    public void wake(MultiblockController<?, ?, ?> controller) {
+        if (asleep.remove(controller)) {
+            add(controller);
+        }
+    }
+    
+    /**
+     * Wakes every controller whose timer is up
+     */
+    public void wakeTimers(long tick) {
+        while (!wakeTimers.isEmpty() && wakeTimers.firstKey() <= tick) {
+            Map.Entry<Long, ArrayList<MultiblockController<?, ?, ?>>> timer = wakeTimers.pollFirstEntry();
+            for (MultiblockController<?, ?, ?> controller : timer.getValue()) {
+                // may have been woken and put back to sleep with another timer since
+                if (controller.wakeAtTick == timer.getKey()) {
+                    controller.wake();
+                }
+            }
+        }
+    }
+    
+    /**
+     * awake controllers only
+     */
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0 && asleep.isEmpty();
+    }
+    
+    public void forEach(Consumer<MultiblockController<?, ?, ?>> consumer) {
+        iterating++;
+        try {
+            // read once, anything added past here waits for the next pass
+            int end = this.end;
+            for (int i = 0; i < end; i++) {
+                MultiblockController<?, ?, ?> controller = slots[i];
+                if (controller != null) {
+                    consumer.accept(controller);
+                }
+            }
+        } finally {
+            iterating--;
+            compactIfNeeded();
+        }
+    }
+    
+    /**
+     * Awake controllers, then asleep ones, the asleep ones can be removed or woken during it
+     */
+    public void forEachIncludingAsleep(Consumer<MultiblockController<?, ?, ?>> consumer) {
+        forEach(consumer);
+        new ArrayList<>(asleep).forEach(consumer);
+    }
+    
+    private void compactIfNeeded() {
+        if (iterating != 0 || end - size <= size) {
+            return;
+        }
+        int live = 0;
+        for (int i = 0; i < end; i++) {
+            MultiblockController<?, ?, ?> controller = slots[i];
+            if (controller != null) {
+                controller.registrySlot = live;
+                slots[live++] = controller;
+            }
+        }
+        Arrays.fill(slots, live, end, null);
+        end = live;
+    }
+}
@@ -0,0 +1,96 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.roguelogix.phosphophyllite.repack.org.joml.Vector3ic;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Which controllers' bounding boxes overlap each chunk section of a level, so a block change only looks at those
+ * <p>
+ * a controller is indexed with the bounds it had the last time it was updated here, which is once a tick
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class ControllerSectionIndex {
+    
+    private final Long2ObjectOpenHashMap<ArrayList<MultiblockController<?, ?, ?>>> sections = new Long2ObjectOpenHashMap<>();
+    // min x y z, max x y z, in blocks
+    private final IdentityHashMap<MultiblockController<?, ?, ?>, int[]> indexedBounds = new IdentityHashMap<>();
+    
+    /**
+     * Reindexes the controller if its bounds moved since it was last indexed
+     */
+    public void update(MultiblockController<?, ?, ?> controller) {
+        Vector3ic min = controller.minCoord();
+        Vector3ic max = controller.maxCoord();
+        int[] bounds = indexedBounds.get(controller);
+        if (bounds != null) {
+            if (bounds[0] == min.x() && bounds[1] == min.y() && bounds[2] == min.z() && bounds[3] == max.x() && bounds[4] == max.y() && bounds[5] == max.z()) {
+                return;
+            }
+            forEachSection(bounds, key -> removeFromSection(key, controller));
+        }
+        bounds = new int[]{min.x(), min.y(), min.z(), max.x(), max.y(), max.z()};
+        indexedBounds.put(controller, bounds);
+        forEachSection(bounds, key -> sections.computeIfAbsent(key, k -> new ArrayList<>(1)).add(controller));
+    }
+    
+    public void remove(MultiblockController<?, ?, ?> controller) {
+        int[] bounds = indexedBounds.remove(controller);
+        if (bounds != null) {
+            forEachSection(bounds, key -> removeFromSection(key, controller));
+        }
+    }
+    
+    /**
+     * Tells every controller with the position inside its indexed bounds that the block there changed
+     */
+    public void blockChanged(BlockPos pos) {
+        int x = pos.getX(), y = pos.getY(), z = pos.getZ();
+        ArrayList<MultiblockController<?, ?, ?>> controllers = sections.get(SectionPos.asLong(x >> 4, y >> 4, z >> 4));
+        if (controllers == null) {
+            return;
+        }
+        for (int i = 0; i < controllers.size(); i++) {
+            MultiblockController<?, ?, ?> controller = controllers.get(i);
+            int[] bounds = indexedBounds.get(controller);
+            if (x >= bounds[0] && x <= bounds[3] && y >= bounds[1] && y <= bounds[4] && z >= bounds[2] && z <= bounds[5]) {
+                controller.blockChanged(pos);
+            }
+        }
+    }
+    
+    private void removeFromSection(long key, MultiblockController<?, ?, ?> controller) {
+        ArrayList<MultiblockController<?, ?, ?>> controllers = sections.get(key);
+        if (controllers == null) {
+            return;
+        }
+        controllers.remove(controller);
+        if (controllers.isEmpty()) {
+            sections.remove(key);
+        }
+    }
+    
+    /**
+     * bounds that were never computed, min past max, cover nothing
+     */
+    private static void forEachSection(int[] bounds, LongConsumer consumer) {
+        if (bounds[0] > bounds[3] || bounds[1] > bounds[4] || bounds[2] > bounds[5]) {
+            return;
+        }
+        for (int x = bounds[0] >> 4; x <= bounds[3] >> 4; x++) {
+            for (int y = bounds[1] >> 4; y <= bounds[4] >> 4; y++) {
+                for (int z = bounds[2] >> 4; z <= bounds[5] >> 4; z++) {
+                    consumer.accept(SectionPos.asLong(x, y, z));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.HashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Always on timings and counters for a controller, every controller of a class also adds to a shared set of totals for that class
+ * <p>
+ * only ever written from the server thread, isolated tick time is handed over once the controller is back on it
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class ControllerStats {
+    
+    private static final HashMap<Class<?>, ControllerStats> classTotals = new HashMap<>();
+    
+    // weight of the newest tick in the recent average, so it roughly covers the last second
+    private static final double RECENT_WEIGHT = 1.0 / 20;
+    
+    @Nullable
+    private final ControllerStats totals;
+    
+    private long ticks = 0;
+    private long updateNanos = 0;
+    private long tickNanos = 0;
+    private long validationNanos = 0;
+    private long validations = 0;
+    private long merges = 0;
+    private long splits = 0;
+    private long tilesAttached = 0;
+    private long nbtNanos = 0;
+    private long nbtWrites = 0;
+    
+    private long currentTickNanos = 0;
+    private double recentNanosPerTick = 0;
+    
+    private ControllerStats(@Nullable ControllerStats totals) {
+        this.totals = totals;
+    }
+    
+    static ControllerStats forController(Class<?> controllerClass) {
+        return new ControllerStats(classTotals.computeIfAbsent(controllerClass, c -> new ControllerStats(null)));
+    }
+    
+    /**
+     * @param consumer called with the totals for every controller class that has had a controller created
+     */
+    public static void forEachClass(BiConsumer<Class<?>, ControllerStats> consumer) {
+        classTotals.forEach(consumer);
+    }
+    
+    void startTick() {
+        recentNanosPerTick += (currentTickNanos - recentNanosPerTick) * RECENT_WEIGHT;
+        currentTickNanos = 0;
+        ticks++;
+        if (totals != null) {
+            totals.ticks++;
+        }
+    }
+    
+    void recordUpdate(long nanos) {
+        updateNanos += nanos;
+        currentTickNanos += nanos;
+        if (totals != null) {
+            totals.recordUpdate(nanos);
+        }
+    }
+    
+    void recordTick(long nanos) {
+        tickNanos += nanos;
+        currentTickNanos += nanos;
+        if (totals != null) {
+            totals.recordTick(nanos);
+        }
+    }
+    
+    /**
+     * validation is part of the update, so this isn't added to the tick's time again
+     */
+    void recordValidation(long nanos) {
+        validationNanos += nanos;
+        validations++;
+        if (totals != null) {
+            totals.recordValidation(nanos);
+        }
+    }
+    
+    void recordMerge() {
+        merges++;
+        if (totals != null) {
+            totals.recordMerge();
+        }
+    }
+    
+    void recordSplits(int pieces) {
+        splits += pieces;
+        if (totals != null) {
+            totals.recordSplits(pieces);
+        }
+    }
+    
+    void recordAttached(int count) {
+        tilesAttached += count;
+        if (totals != null) {
+            totals.recordAttached(count);
+        }
+    }
+    
+    void recordNBTWrite(long nanos) {
+        nbtNanos += nanos;
+        nbtWrites++;
+        currentTickNanos += nanos;
+        if (totals != null) {
+            totals.recordNBTWrite(nanos);
+        }
+    }
+    
+    /**
+     * @return update, tick, and NBT time per tick, averaged over roughly the last second, always 0 for class totals
+     */
+    public double recentMillisPerTick() {
+        return recentNanosPerTick / 1_000_000;
+    }
+    
+    /**
+     * @return update, tick, and NBT time, in total
+     */
+    public double totalMillis() {
+        return (updateNanos + tickNanos + nbtNanos) / 1_000_000.0;
+    }
+    
+    public double averageMillisPerTick() {
+        return ticks == 0 ? 0 : totalMillis() / ticks;
+    }
+    
+    public long ticks() {
+        return ticks;
+    }
+    
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / 1_000_000.0);
+    }
+    
+    /**
+     * @return multi line summary of every counter
+     */
+    public String describe() {
+        StringBuilder builder = new StringBuilder();
+        if (totals != null) {
+            builder.append("Recent: ").append(String.format("%.3fms/t", recentMillisPerTick())).append("\n");
+        }
+        builder.append("Average: ").append(String.format("%.3fms/t", averageMillisPerTick())).append(" over ").append(ticks).append(" ticks\n");
+        builder.append("Update: ").append(millis(updateNanos)).append("\n");
+        builder.append("Tick: ").append(millis(tickNanos)).append("\n");
+        builder.append("Validations: ").append(validations).append(", ").append(millis(validationNanos)).append("\n");
+        builder.append("Merges: ").append(merges).append(", Splits: ").append(splits).append("\n");
+        builder.append("Tiles Attached: ").append(tilesAttached).append(", ").append(String.format("%.2f/t", ticks == 0 ? 0 : (double) tilesAttached / ticks)).append("\n");
+        builder.append("NBT Writes: ").append(nbtWrites).append(", ").append(millis(nbtNanos)).append("\n");
+        return builder.toString();
+    }
+}
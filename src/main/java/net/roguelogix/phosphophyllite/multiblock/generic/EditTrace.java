@@ -0,0 +1,209 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.roguelogix.phosphophyllite.Phosphophyllite;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Compact binary trace of multiblock edits, recorded on a live server and replayed against the headless controller engine
+ * <p>
+ * everything is big endian, as DataOutputStream writes it
+ * header is MAGIC then VERSION, both ints, then records until the end of the file, each a type byte followed by its data
+ * <p>
+ * TICK, nothing, end of a server tick
+ * LEVEL, UTF dimension id, the records after it are in that level
+ * ATTACH, long BlockPos, a placed or loaded tile went into an attach batch, tiles queued again by their own controller detaching them aren't recorded
+ * DETACH, long BlockPos then boolean chunk unload, a tile was detached by something other than its controller splitting
+ * CHUNK_LOAD and CHUNK_UNLOAD, long ChunkPos, full chunks only
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class EditTrace {
+    
+    public static final int MAGIC = 0x50485452; // PHTR
+    public static final int VERSION = 1;
+    
+    public static final byte TICK = 0;
+    public static final byte LEVEL = 1;
+    public static final byte ATTACH = 2;
+    public static final byte DETACH = 3;
+    public static final byte CHUNK_LOAD = 4;
+    public static final byte CHUNK_UNLOAD = 5;
+    
+    public interface Visitor {
+        void tick();
+        
+        void level(String level);
+        
+        void attach(long pos);
+        
+        void detach(long pos, boolean chunkUnload);
+        
+        void chunkLoad(long chunkPos);
+        
+        void chunkUnload(long chunkPos);
+    }
+    
+    /**
+     * Reads a whole trace, calling the visitor for each record in order
+     */
+    public static void read(InputStream stream, Visitor visitor) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a multiblock edit trace");
+        }
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported edit trace version " + version);
+        }
+        while (true) {
+            int type = input.read();
+            switch (type) {
+                case -1:
+                    return;
+                case TICK:
+                    visitor.tick();
+                    break;
+                case LEVEL:
+                    visitor.level(input.readUTF());
+                    break;
+                case ATTACH:
+                    visitor.attach(input.readLong());
+                    break;
+                case DETACH:
+                    visitor.detach(input.readLong(), input.readBoolean());
+                    break;
+                case CHUNK_LOAD:
+                    visitor.chunkLoad(input.readLong());
+                    break;
+                case CHUNK_UNLOAD:
+                    visitor.chunkUnload(input.readLong());
+                    break;
+                default:
+                    throw new IOException("Unknown edit trace record " + type);
+            }
+        }
+    }
+    
+    // -- recording --
+    // chunk events aren't guaranteed to be on the server thread, so writes are synchronized
+    // the unsynchronized check in front keeps it free when nothing is recording
+    
+    @Nullable
+    private static volatile DataOutputStream output = null;
+    @Nullable
+    private static File outputFile = null;
+    @Nullable
+    private static Level lastLevel = null;
+    
+    public static boolean recording() {
+        return output != null;
+    }
+    
+    /**
+     * @return the file the trace is written to
+     */
+    public static synchronized File startRecording() throws IOException {
+        if (output != null) {
+            assert outputFile != null;
+            return outputFile;
+        }
+        File file = new File("phosphophyllite/traces/" + new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss").format(new Date()) + ".trace");
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        stream.writeInt(MAGIC);
+        stream.writeInt(VERSION);
+        lastLevel = null;
+        outputFile = file;
+        output = stream;
+        return file;
+    }
+    
+    /**
+     * @return the file the trace was written to, null if nothing was recording
+     */
+    @Nullable
+    public static synchronized File stopRecording() throws IOException {
+        DataOutputStream stream = output;
+        if (stream == null) {
+            return null;
+        }
+        output = null;
+        lastLevel = null;
+        stream.close();
+        return outputFile;
+    }
+    
+    public static void recordTick() {
+        if (output == null) {
+            return;
+        }
+        write(null, TICK, 0, false);
+    }
+    
+    public static void recordAttach(Level level, BlockPos pos) {
+        if (output == null) {
+            return;
+        }
+        write(level, ATTACH, pos.asLong(), false);
+    }
+    
+    public static void recordDetach(Level level, BlockPos pos, boolean chunkUnload) {
+        if (output == null) {
+            return;
+        }
+        write(level, DETACH, pos.asLong(), chunkUnload);
+    }
+    
+    public static void recordChunkLoad(Level level, ChunkPos pos) {
+        if (output == null) {
+            return;
+        }
+        write(level, CHUNK_LOAD, pos.toLong(), false);
+    }
+    
+    public static void recordChunkUnload(Level level, ChunkPos pos) {
+        if (output == null) {
+            return;
+        }
+        write(level, CHUNK_UNLOAD, pos.toLong(), false);
+    }
+    
+    private static synchronized void write(@Nullable Level level, byte type, long value, boolean flag) {
+        DataOutputStream stream = output;
+        if (stream == null) {
+            return;
+        }
+        try {
+            if (level != null && level != lastLevel) {
+                lastLevel = level;
+                stream.writeByte(LEVEL);
+                stream.writeUTF(level.dimension().location().toString());
+            }
+            stream.writeByte(type);
+            if (type != TICK) {
+                stream.writeLong(value);
+            }
+            if (type == DETACH) {
+                stream.writeBoolean(flag);
+            }
+        } catch (IOException e) {
+            Phosphophyllite.LOGGER.error("Failed to write multiblock edit trace, recording stopped", e);
+            output = null;
+            lastLevel = null;
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package net.roguelogix.phosphophyllite.multiblock.generic;
 
 /**
  * ticked from the multiblock controller after it is ticked
+ * a tile with nothing to do can stop being ticked with MultiblockController.sleepTile, until wakeTile
  */
 public interface ITickableMultiblockTile {
     
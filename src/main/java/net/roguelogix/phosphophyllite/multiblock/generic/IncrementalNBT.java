@@ -0,0 +1,119 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.Tag;
+import net.roguelogix.phosphophyllite.threading.Event;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.function.Supplier;
+
+/**
+ * A multiblock's saved NBT, snapshot on the server thread and encoded on another
+ * <p>
+ * sections that haven't been marked dirty since the last encode reuse the tag from it
+ * only one encode is ever running, a new snapshot waits for the last one to be taken first
+ */
+class IncrementalNBT {
+    
+    private final LinkedHashMap<String, NBTSection> sections = new LinkedHashMap<>();
+    private final LinkedHashSet<String> dirty = new LinkedHashSet<>();
+    // only touched by encodes, which never overlap
+    private final HashMap<String, Tag> encoded = new HashMap<>();
+    
+    final class Encode implements Runnable {
+        private final Supplier<CompoundTag> encoder;
+        @Nullable
+        Event done = null;
+        @Nullable
+        private volatile CompoundTag result = null;
+        @Nullable
+        private volatile RuntimeException error = null;
+        
+        private Encode(Supplier<CompoundTag> encoder) {
+            this.encoder = encoder;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                result = encoder.get();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+        
+        boolean finished() {
+            return result != null || error != null;
+        }
+        
+        /**
+         * Waits for the encode if it's running elsewhere, an exception from it is rethrown here
+         */
+        CompoundTag join() {
+            if (done != null) {
+                while (!done.ready()) {
+                    done.join();
+                }
+            }
+            RuntimeException error = this.error;
+            if (error != null) {
+                // no telling which sections made it, so they all get rebuilt next time
+                encoded.clear();
+                dirty.addAll(sections.keySet());
+                throw error;
+            }
+            CompoundTag result = this.result;
+            assert result != null;
+            return result;
+        }
+    }
+    
+    void register(String key, NBTSection section) {
+        if (sections.putIfAbsent(key, section) != null) {
+            throw new IllegalArgumentException("NBT section " + key + " already registered");
+        }
+        dirty.add(key);
+    }
+    
+    void markDirty(String key) {
+        if (!sections.containsKey(key)) {
+            throw new IllegalArgumentException("Unknown NBT section " + key);
+        }
+        dirty.add(key);
+    }
+    
+    /**
+     * Takes everything the encode needs, on the server thread, the tags passed in aren't changed
+     *
+     * @param userdata what write() returned
+     */
+    Encode snapshot(CompoundTag userdata, CompoundTag multiblockData) {
+        // shallow copy, so sections can be added without touching write()'s tag
+        final CompoundTag userdataCopy = new CompoundTag();
+        for (String key : userdata.getAllKeys()) {
+            Tag tag = userdata.get(key);
+            assert tag != null;
+            userdataCopy.put(key, tag);
+        }
+        final ArrayList<String> keys = new ArrayList<>(dirty);
+        final ArrayList<Supplier<Tag>> encoders = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            encoders.add(sections.get(key).snapshot());
+        }
+        dirty.clear();
+        return new Encode(() -> {
+            for (int i = 0; i < keys.size(); i++) {
+                encoded.put(keys.get(i), encoders.get(i).get());
+            }
+            encoded.forEach(userdataCopy::put);
+            CompoundTag nbt = new CompoundTag();
+            nbt.put("userdata", userdataCopy);
+            nbt.put("multiblockData", multiblockData);
+            return nbt;
+        });
+    }
+}
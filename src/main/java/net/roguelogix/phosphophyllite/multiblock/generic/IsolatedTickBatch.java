@@ -0,0 +1,97 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * One world's assembled isolated controllers for a tick, their ticks run off the server thread together
+ * <p>
+ * started is ticking on the pool, finished is waited for and had its tiles ticked back on the server thread
+ * while started, every controller in it waits for the batch before the server thread touches its structure or NBT
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class IsolatedTickBatch {
+    
+    private final ArrayList<MultiblockController<?, ?, ?>> controllers = new ArrayList<>();
+    @Nullable
+    private ForkJoinTask<?> task = null;
+    
+    public void add(MultiblockController<?, ?, ?> controller) {
+        controllers.add(controller);
+    }
+    
+    public boolean isEmpty() {
+        return controllers.isEmpty();
+    }
+    
+    /**
+     * Ticks every controller and then their tiles, returning once all of it is done
+     *
+     * @param parallel if the controller ticks can be spread across the pool, with one controller they are run on this thread regardless
+     */
+    public void run(ForkJoinPool pool, boolean parallel) {
+        if (parallel && controllers.size() > 1) {
+            start(pool, true);
+        } else {
+            controllers.forEach(MultiblockController::isolatedTick);
+        }
+        finish();
+    }
+    
+    /**
+     * Starts the controller ticks on the pool without waiting for them
+     * <p>
+     * anything structural that happened since the controllers were added can take them out of the batch, controllers no longer assembled or merged into another aren't ticked
+     *
+     * @param parallel if the controller ticks can be spread across the pool, otherwise they are run one after another on one thread of it
+     */
+    public void start(ForkJoinPool pool, boolean parallel) {
+        controllers.removeIf(controller -> controller.state != MultiblockController.AssemblyState.ASSEMBLED || controller.blocks.isEmpty());
+        if (controllers.isEmpty()) {
+            return;
+        }
+        for (MultiblockController<?, ?, ?> controller : controllers) {
+            controller.isolatedTickBatch = this;
+        }
+        // join is the barrier, nothing reads what the ticks wrote until it's done
+        if (parallel) {
+            task = pool.submit(() -> controllers.parallelStream().forEach(MultiblockController::isolatedTick));
+        } else {
+            task = pool.submit(() -> controllers.forEach(MultiblockController::isolatedTick));
+        }
+    }
+    
+    /**
+     * Waits for the controller ticks, if they were started, safe to call more than once
+     */
+    void await() {
+        ForkJoinTask<?> task = this.task;
+        if (task != null) {
+            task.join();
+        }
+    }
+    
+    /**
+     * Waits for the controller ticks, then ticks the tiles, in the order the controllers were added
+     */
+    public void finish() {
+        try {
+            await();
+        } finally {
+            task = null;
+            for (MultiblockController<?, ?, ?> controller : controllers) {
+                controller.isolatedTickBatch = null;
+            }
+        }
+        for (MultiblockController<?, ?, ?> controller : controllers) {
+            controller.tickTiles();
+        }
+        controllers.clear();
+    }
+}
@@ -16,6 +16,7 @@ import net.minecraft.world.level.block.state.StateDefinition;
 import net.minecraft.world.level.block.state.StateHolder;
 import net.minecraft.world.level.block.state.properties.BooleanProperty;
 import net.minecraft.world.phys.BlockHitResult;
+import net.roguelogix.phosphophyllite.util.TileMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -84,7 +85,16 @@ public abstract class MultiblockBlock<ControllerType extends MultiblockControlle
     @Override
     public void neighborChanged(@Nonnull BlockState state, @Nonnull Level worldIn, @Nonnull BlockPos pos, @Nonnull Block blockIn, @Nonnull BlockPos fromPos, boolean isMoving) {
         super.neighborChanged(state, worldIn, pos, blockIn, fromPos, isMoving);
+        BlockEntity te = worldIn.getBlockEntity(pos);
+        if (!worldIn.isClientSide && te instanceof MultiblockTile && ((MultiblockTile<?, ?, ?>) te).controller != null) {
+            // something next to it changed, an asleep multiblock may have something to do now
+            ((MultiblockTile<?, ?, ?>) te).controller.wake();
+        }
         if (connectedTexture()) {
+            // the controller sets it with the rest of the blockstate, once every neighbor is in place
+            if (te instanceof MultiblockTile && ((MultiblockTile<?, ?, ?>) te).blockStatePending) {
+                return;
+            }
             updateConnectedTextureState(worldIn, pos, state);
         }
     }
@@ -107,6 +117,30 @@ public abstract class MultiblockBlock<ControllerType extends MultiblockControlle
         worldIn.setBlock(pos, state, 2);
     }
     
+    /**
+     * Same as updateConnectedTextureState, but looking at the multiblock's tiles first
+     * neighbors that aren't in the multiblock are read from the world, so connectToBlock can still connect to anything
+     */
+    BlockState connectedTextureState(BlockState state, BlockPos pos, TileMap<?> tiles, Level world) {
+        BlockPos.MutableBlockPos neighbor = new BlockPos.MutableBlockPos();
+        state = state.setValue(TOP_CONNECTED_PROPERTY, connectToNeighbor(neighbor.setWithOffset(pos, Direction.UP), tiles, world));
+        state = state.setValue(BOTTOM_CONNECTED_PROPERTY, connectToNeighbor(neighbor.setWithOffset(pos, Direction.DOWN), tiles, world));
+        state = state.setValue(NORTH_CONNECTED_PROPERTY, connectToNeighbor(neighbor.setWithOffset(pos, Direction.NORTH), tiles, world));
+        state = state.setValue(SOUTH_CONNECTED_PROPERTY, connectToNeighbor(neighbor.setWithOffset(pos, Direction.SOUTH), tiles, world));
+        state = state.setValue(EAST_CONNECTED_PROPERTY, connectToNeighbor(neighbor.setWithOffset(pos, Direction.EAST), tiles, world));
+        state = state.setValue(WEST_CONNECTED_PROPERTY, connectToNeighbor(neighbor.setWithOffset(pos, Direction.WEST), tiles, world));
+        return state;
+    }
+    
+    private boolean connectToNeighbor(BlockPos neighbor, TileMap<?> tiles, Level world) {
+        BlockEntity tile = tiles.getTile(neighbor);
+        if (tile != null) {
+            return connectToBlock(tile.getBlockState().getBlock());
+        }
+        // neighbors in unloaded chunks dont connect, a texture isn't worth loading a chunk for
+        return world.isLoaded(neighbor) && connectToBlock(world.getBlockState(neighbor).getBlock());
+    }
+    
     protected boolean connectToBlock(Block block){
         return block == this;
     }
@@ -1,17 +1,22 @@
 package net.roguelogix.phosphophyllite.multiblock.generic;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import net.minecraft.core.BlockPos;
-import net.minecraft.core.Direction;
 import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
 import net.roguelogix.phosphophyllite.Phosphophyllite;
-import net.roguelogix.phosphophyllite.repack.org.joml.Vector2i;
+import net.roguelogix.phosphophyllite.PhosphophylliteConfig;
 import net.roguelogix.phosphophyllite.repack.org.joml.Vector3i;
 import net.roguelogix.phosphophyllite.repack.org.joml.Vector3ic;
-import net.roguelogix.phosphophyllite.util.AStarList;
+import net.roguelogix.phosphophyllite.threading.Queues;
+import net.roguelogix.phosphophyllite.util.BlockStateBatch;
+import net.roguelogix.phosphophyllite.util.SectionDirtySet;
+import net.roguelogix.phosphophyllite.util.SplitDetector;
 import net.roguelogix.phosphophyllite.util.TileMap;
-import net.roguelogix.phosphophyllite.util.Util;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -24,14 +29,37 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
     private boolean hasSaveDelegate = false;
     protected final TileMap<TileType> blocks = new TileMap<>();
     protected final Set<ITickableMultiblockTile> toTick = new LinkedHashSet<>();
+    // taken out of toTick by sleepTile, until wakeTile
+    private final Set<ITickableMultiblockTile> asleepTiles = new LinkedHashSet<>();
+    private boolean tickingTiles = false;
+    // sleepTile and wakeTile calls while tiles are ticking, true to sleep, the last call for a tile wins
+    private final LinkedHashMap<ITickableMultiblockTile, Boolean> pendingTileSleeps = new LinkedHashMap<>();
     protected final Set<IAssemblyAttemptedTile> assemblyAttemptedTiles = new LinkedHashSet<>();
     protected final Set<IOnAssemblyTile> onAssemblyTiles = new LinkedHashSet<>();
     protected final Set<IOnDisassemblyTile> onDisassemblyTiles = new LinkedHashSet<>();
     private boolean checkForDetachments = false;
     private boolean updateExtremes = true;
     private long updateAssemblyAtTick = Long.MAX_VALUE;
+    private long structureVersion = 0;
+    // structureVersion when last validated as assembled
+    private long assembledStructureVersion = -1;
+    // sum of every member's StructureFingerprint hash
+    private long memberHash = 0;
+    // what it looked like when last validated as assembled, and what it looked like before it was unloaded
+    @Nullable
+    private StructureFingerprint assembledFingerprint = null;
+    @Nullable
+    private StructureFingerprint resumeFingerprint = null;
+    private SectionDirtySet changedBlocks = new SectionDirtySet();
+    // chunk unload detaches, one event per chunk, nothing says when a chunk is done so it's committed once another chunk or the next tick comes along
+    @Nullable
+    private MultiblockJFREvents.DetachBatch unloadDetachEvent = null;
+    private long unloadDetachChunk = 0;
     protected final Set<ControllerType> controllersToMerge = new LinkedHashSet<>();
-    protected final List<BlockPos> removedBlocks = new LinkedList<>();
+    private final SplitDetector splitDetector = new SplitDetector(pos -> {
+        TileType tile = blocks.getTile(pos);
+        return tile != null && tile.controller == this;
+    });
     
     private final Vector3i minCoord = new Vector3i();
     private final Vector3i maxCoord = new Vector3i();
@@ -47,8 +75,34 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
     
     protected AssemblyState state = AssemblyState.DISASSEMBLED;
     
+    // tiles left to update the blockstate of, taken from the end
+    private ArrayList<TileType> blockStateTransition = null;
+    private boolean transitionToAssembled = false;
+    
     private boolean shouldUpdateNBT = false;
+    private boolean inIsolatedTick = false;
+    // set while tick may still be running off the server thread
+    @Nullable
+    IsolatedTickBatch isolatedTickBatch = null;
+    private boolean markDirtyDeferred = false;
+    // a save took an old snapshot, its chunks are marked unsaved again once the server thread is back to ticking
+    private boolean remarkDirtyQueued = false;
+    // ticks asked to sleep for by tick, 0 until woken, -1 if it wasn't asked
+    private long sleepRequest = -1;
+    // taken out of its registry's ticking until woken
+    boolean asleep = false;
+    // 0 if it's only woken by hand
+    long wakeAtTick = 0;
     private CompoundTag cachedNBT = null;
+    private final IncrementalNBT incrementalNBT = new IncrementalNBT();
+    // running or finished, but not taken into cachedNBT yet
+    @Nullable
+    private IncrementalNBT.Encode nbtEncode = null;
+    private long lastNBTSnapshotTick = 0;
+    // one of its chunks is about to be saved and unloaded, that save can't be behind
+    private boolean currentNBTOnSave = false;
+    // MinecraftServer.tickServer autosaves every this many ticks
+    private static final int AUTOSAVE_INTERVAL = 6000;
     
     protected final Validator<MultiblockTile<?, ?, ?>> tileTypeValidator;
     protected final Validator<MultiblockBlock<?, ?, ?>> blockTypeValidator;
@@ -57,6 +111,13 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
     protected ValidationError lastValidationError = null;
     
     long lastTick = -1;
+    // index in its level's ControllerRegistry, -1 when not in one
+    int registrySlot = -1;
+    
+    private static long nextID = 0;
+    private final long id = nextID++;
+    private final ControllerStats stats = ControllerStats.forController(getClass());
+    private long isolatedTickNanos = 0;
     
     
     public MultiblockController(@Nonnull Level world, @Nonnull Validator<MultiblockTile<?, ?, ?>> tileTypeValidator, @Nonnull Validator<MultiblockBlock<?, ?, ?>> blockTypeValidator) {
@@ -75,6 +136,17 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
         return world;
     }
     
+    /**
+     * Unique for the lifetime of the server, not saved
+     */
+    public final long id() {
+        return id;
+    }
+    
+    public final ControllerStats stats() {
+        return stats;
+    }
+    
     public Vector3ic minCoord() {
         return minCoord;
     }
@@ -146,6 +218,8 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
     }
     
     final void attemptAttach(@Nonnull MultiblockTile<?, ?, ?> toAttachGeneric) {
+        awaitIsolatedTick();
+        wake();
         
         if (!tileTypeValidator.validate(toAttachGeneric)) {
             return;
@@ -178,8 +252,10 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
         
         // ok, its a valid tile to attach, so ima attach it
         blocks.addTile(toAttach);
+        memberHash += toAttach.fingerprint();
         
         BlockPos toAttachPos = toAttach.getBlockPos();
+        changedBlocks.mark(toAttachPos.getX(), toAttachPos.getY(), toAttachPos.getZ());
         // update minmax
         if (toAttachPos.getX() < minCoord.x) {
             minCoord.x = toAttachPos.getX();
@@ -249,7 +325,9 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
         } else {
             onPartPlaced(toAttach);
         }
+        stats.recordAttached(1);
         updateAssemblyAtTick = Phosphophyllite.tickNumber() + 1;
+        structureVersion++;
     }
     
     final void detach(@Nonnull TileType toDetach) {
@@ -260,10 +338,45 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
         detach(toDetach, onChunkUnload, true);
     }
     
+    private void recordUnloadDetach(BlockPos pos) {
+        long chunk = ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4);
+        if (unloadDetachEvent != null && unloadDetachChunk != chunk) {
+            commitUnloadDetachEvent();
+        }
+        if (unloadDetachEvent == null) {
+            unloadDetachEvent = new MultiblockJFREvents.DetachBatch();
+            unloadDetachEvent.begin();
+            unloadDetachChunk = chunk;
+        }
+        unloadDetachEvent.tiles++;
+        // so the time between the chunk's last detach and the commit isn't counted
+        unloadDetachEvent.end();
+    }
+    
+    private void commitUnloadDetachEvent() {
+        if (unloadDetachEvent != null) {
+            unloadDetachEvent.commitEndedFor(this);
+            unloadDetachEvent = null;
+        }
+    }
+    
     final void detach(@Nonnull TileType toDetach, boolean onChunkUnload, boolean checkForDetachments) {
-        blocks.removeTile(toDetach);
+        awaitIsolatedTick();
+        wake();
+        if (checkForDetachments) {
+            // detaches without a split check come from the controller itself, replaying the rest reproduces them
+            EditTrace.recordDetach(world, toDetach.getBlockPos(), onChunkUnload);
+        }
+        if (blocks.removeTile(toDetach)) {
+            memberHash -= toDetach.fingerprint();
+        }
+        if (onChunkUnload && checkForDetachments) {
+            recordUnloadDetach(toDetach.getBlockPos());
+        }
+        toDetach.blockStatePending = false;
         if (toDetach instanceof ITickableMultiblockTile) {
             toTick.remove(toDetach);
+            asleepTiles.remove(toDetach);
         }
         if (toDetach instanceof IAssemblyAttemptedTile) {
             assemblyAttemptedTiles.remove(toDetach);
@@ -281,6 +394,8 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
         } else {
             onPartBroken(toDetach);
             // dont need to try to attach if the chunk just unloaded
+            // replaying the detach queues this again, so it isn't traced
+            toDetach.attachFromDetach = true;
             toDetach.attemptAttach();
         }
         
@@ -289,15 +404,17 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
         }
         
         if (blocks.isEmpty()) {
+            commitUnloadDetachEvent();
             Phosphophyllite.removeController(this);
         }
         
         this.checkForDetachments = this.checkForDetachments || checkForDetachments;
         if (checkForDetachments) {
-            removedBlocks.add(toDetach.getBlockPos());
+            splitDetector.blockRemoved(toDetach.getBlockPos().asLong());
         }
         
         BlockPos toDetachPos = toDetach.getBlockPos();
+        changedBlocks.mark(toDetachPos.getX(), toDetachPos.getY(), toDetachPos.getZ());
         if (toDetachPos.getX() == minCoord.x) {
             minExtremeBlocks.x--;
             if (minExtremeBlocks.x == 0) {
@@ -336,66 +453,135 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
         }
         
         updateAssemblyAtTick = Phosphophyllite.tickNumber() + 1;
+        structureVersion++;
     }
     
     public final void update() {
+        if (updateStructure()) {
+            updateTick();
+        }
+    }
+    
+    /**
+     * Structural work, in the order it has to be done in
+     */
+    public enum StructuralWork {
+        SPLIT,
+        MERGE,
+        VALIDATION,
+        NONE,
+    }
+    
+    /**
+     * Splits, merges, and assembly validation for this tick, all at once
+     * always on the server thread, and may change blockstates
+     *
+     * @return false if the controller was already updated this tick, or has nothing left in it
+     */
+    public final boolean updateStructure() {
+        if (!beginTick()) {
+            return false;
+        }
+        long startTime = System.nanoTime();
+        checkForSplits();
+        mergeControllers();
+        validateAssembly();
+        stats.recordUpdate(System.nanoTime() - startTime);
+        return true;
+    }
+    
+    /**
+     * Starts this controller's tick, the structural work and ticking can then be done separately
+     *
+     * @return false if the controller was already updated this tick, or has nothing left in it
+     */
+    public final boolean beginTick() {
         if (lastTick >= Phosphophyllite.tickNumber()) {
-            return;
+            return false;
         }
         lastTick = Phosphophyllite.tickNumber();
+        stats.startTick();
+        commitUnloadDetachEvent();
         
         if (blocks.isEmpty()) {
             // why are we being ticked?
             Phosphophyllite.removeController(this);
             checkForDetachments = false;
+            splitDetector.clear();
+            // nothing left to do anything with, this is also what a controller that was merged into another looks like
+            return false;
+        }
+        continueBlockStateTransition();
+        updateNBTInBackground();
+        return true;
+    }
+    
+    /**
+     * @return the first structural work that needs doing, NONE if there isn't any
+     */
+    public final StructuralWork pendingStructuralWork() {
+        if (blocks.isEmpty()) {
+            return StructuralWork.NONE;
         }
-        
         if (checkForDetachments) {
-            BlockPos.MutableBlockPos mutableBlockPos = new BlockPos.MutableBlockPos();
-            
-            AStarList aStarList = new AStarList();
-            
-            for (BlockPos removedBlock : removedBlocks) {
-                for (Direction value : Direction.values()) {
-                    mutableBlockPos.set(removedBlock);
-                    mutableBlockPos.move(value);
-                    TileType tile = blocks.getTile(mutableBlockPos);
-                    if (tile != null && tile.controller == this) {
-                        aStarList.addTarget(tile.getBlockPos());
-                    }
-                }
-            }
-            removedBlocks.clear();
-            
-            while (!aStarList.done()) {
-                BlockPos node = aStarList.nextNode();
-                for (Direction value : Direction.values()) {
-                    mutableBlockPos.set(node);
-                    mutableBlockPos.move(value);
-                    TileType tile = blocks.getTile(mutableBlockPos);
-                    if (tile != null && tile.controller == this && tile.lastSavedTick != this.lastTick) {
-                        tile.lastSavedTick = this.lastTick;
-                        aStarList.addNode(tile.getBlockPos());
-                    }
-                }
-            }
-            
-            if (!aStarList.foundAll()) {
-                HashSet<TileType> toOrphan = new LinkedHashSet<>();
-                blocks.forEachTile(tile -> {
-                    if (tile.lastSavedTick != this.lastTick) {
-                        toOrphan.add(tile);
-                    }
-                });
-                if (!toOrphan.isEmpty()) {
-                    for (TileType tile : toOrphan) {
-                        detach(tile, state == AssemblyState.PAUSED, false);
+            return StructuralWork.SPLIT;
+        }
+        if (!controllersToMerge.isEmpty()) {
+            return StructuralWork.MERGE;
+        }
+        if (updateAssemblyAtTick < lastTick) {
+            return StructuralWork.VALIDATION;
+        }
+        return StructuralWork.NONE;
+    }
+    
+    /**
+     * Does only the first pending structural work, so it can be spread across ticks
+     */
+    public final void doStructuralWork() {
+        long startTime = System.nanoTime();
+        switch (pendingStructuralWork()) {
+            case SPLIT:
+                checkForSplits();
+                break;
+            case MERGE:
+                mergeControllers();
+                break;
+            case VALIDATION:
+                validateAssembly();
+                break;
+        }
+        stats.recordUpdate(System.nanoTime() - startTime);
+    }
+    
+    private void checkForSplits() {
+        if (checkForDetachments) {
+            MultiblockJFREvents.SplitScan splitScanEvent = new MultiblockJFREvents.SplitScan();
+            splitScanEvent.begin();
+            List<LongArrayList> splitPieces = splitDetector.detectSplits();
+            splitScanEvent.pieces = splitPieces.size();
+            splitScanEvent.commitFor(this);
+            if (!splitPieces.isEmpty()) {
+                MultiblockJFREvents.DetachBatch detachEvent = new MultiblockJFREvents.DetachBatch();
+                detachEvent.begin();
+                for (LongArrayList piece : splitPieces) {
+                    for (int i = 0; i < piece.size(); i++) {
+                        TileType tile = blocks.getTile(piece.getLong(i));
+                        if (tile != null) {
+                            detach(tile, state == AssemblyState.PAUSED, false);
+                            detachEvent.tiles++;
+                        }
                     }
-                    updateAssemblyAtTick = Long.MIN_VALUE;
                 }
+                detachEvent.commitFor(this);
+                updateAssemblyAtTick = Long.MIN_VALUE;
+                stats.recordSplits(splitPieces.size());
             }
             checkForDetachments = false;
         }
+    }
+    
+    private void mergeControllers() {
         if (!controllersToMerge.isEmpty()) {
             HashSet<ControllerType> newToMerge = new HashSet<>();
             for (ControllerType otherController : controllersToMerge) {
@@ -403,51 +589,424 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
                 otherController.controllersToMerge.remove(self());
                 newToMerge.addAll(otherController.controllersToMerge);
                 otherController.controllersToMerge.clear();
+                MultiblockJFREvents.Merge mergeEvent = new MultiblockJFREvents.Merge();
+                mergeEvent.begin();
+                mergeEvent.mergedControllerID = otherController.id();
+                mergeEvent.mergedBlockCount = otherController.blocks.size();
+                mergeEvent.sameClass = otherController.getClass() == getClass();
                 this.onMerge(otherController);
-                otherController.blocks.forEachTile(tile -> {
-                    tile.controller = null;
-                    tile.preExistingBlock = false;
-                    attemptAttach(tile);
-                });
+                stats.recordMerge();
+                adoptBlockStateTransition(otherController);
+                if (mergeEvent.sameClass) {
+                    adoptBlocks(otherController);
+                } else {
+                    // validators may not agree, so every tile has to go through them again
+                    otherController.blocks.forEachTile(tile -> {
+                        tile.controller = null;
+                        tile.preExistingBlock = false;
+                        attemptAttach(tile);
+                    });
+                    updateExtremes = true;
+                }
+                mergeEvent.commitFor(this);
             }
-            updateExtremes = true;
             updateAssemblyAtTick = Long.MIN_VALUE;
             controllersToMerge.clear();
             controllersToMerge.addAll(newToMerge);
         }
-        
+    }
+    
+    private void validateAssembly() {
         if (updateAssemblyAtTick < lastTick) {
+            long startTime = System.nanoTime();
+            MultiblockJFREvents.AssemblyValidation validationEvent = new MultiblockJFREvents.AssemblyValidation();
+            validationEvent.begin();
             updateMinMaxCoordinates();
-            updateAssemblyState();
             updateAssemblyAtTick = Long.MAX_VALUE;
+            boolean resume = canResumeFromFingerprint();
+            if (resume || readyForAssemblyValidation()) {
+                updateAssemblyState(resume);
+                // anything not taken by the validator is covered by it
+                changedBlocks.clear();
+                if (resume) {
+                    // blocks set without a block update never drop the fingerprint, so what the resume skipped is checked next tick
+                    onResumedWithoutValidation();
+                    requestAssemblyValidation();
+                }
+                validationEvent.result = state.toString();
+            } else {
+                validationEvent.result = "DEFERRED";
+            }
+            validationEvent.volume = (long) (maxCoord.x - minCoord.x + 1) * (maxCoord.y - minCoord.y + 1) * (maxCoord.z - minCoord.z + 1);
+            validationEvent.commitFor(this);
+            stats.recordValidation(System.nanoTime() - startTime);
         }
-        
+    }
+    
+    /**
+     * Ticks the controller and then its tiles, or disassembledTick, depending on the assembly state
+     */
+    public final void updateTick() {
+        long startTime = System.nanoTime();
         if (state == AssemblyState.ASSEMBLED) {
             tick();
-            toTick.forEach(ITickableMultiblockTile::tick);
+            runTileTicks();
         } else if (state == AssemblyState.DISASSEMBLED) {
             disassembledTick();
         }
+        applySleepRequest();
+        stats.recordTick(System.nanoTime() - startTime);
+    }
+    
+    /**
+     * Calls tick for an isolated controller, may be off the server thread
+     * markDirty calls are held until tickTiles, as they touch the world
+     */
+    public final void isolatedTick() {
+        inIsolatedTick = true;
+        long startTime = System.nanoTime();
+        try {
+            tick();
+        } finally {
+            inIsolatedTick = false;
+            // stats are only touched on the server thread, this is handed over in tickTiles
+            isolatedTickNanos = System.nanoTime() - startTime;
+        }
+    }
+    
+    /**
+     * Waits for tick to finish, if it was started off the server thread and may still be running
+     * <p>
+     * with AsyncLevelTicks, isolated ticks keep running while later worlds tick and players interact with the world
+     * call this before reading anything tick writes from outside of a tick, guis and capabilities included
+     * attaching, detaching, block changes, and NBT already do
+     */
+    public final void awaitIsolatedTick() {
+        IsolatedTickBatch batch = isolatedTickBatch;
+        if (batch != null) {
+            batch.await();
+        }
+    }
+    
+    /**
+     * Ticks the tiles only, for isolated controllers that already had tick called off thread
+     */
+    public final void tickTiles() {
+        long startTime = System.nanoTime();
+        runTileTicks();
+        applySleepRequest();
+        stats.recordTick(isolatedTickNanos + System.nanoTime() - startTime);
+        isolatedTickNanos = 0;
+    }
+    
+    private void runTileTicks() {
+        if (markDirtyDeferred) {
+            markDirtyDeferred = false;
+            markDirty();
+        }
+        if (state == AssemblyState.ASSEMBLED) {
+            tickingTiles = true;
+            try {
+                toTick.forEach(ITickableMultiblockTile::tick);
+            } finally {
+                tickingTiles = false;
+            }
+            if (!pendingTileSleeps.isEmpty()) {
+                pendingTileSleeps.forEach((tile, sleep) -> {
+                    if (sleep) {
+                        sleepTile(tile);
+                    } else {
+                        wakeTile(tile);
+                    }
+                });
+                pendingTileSleeps.clear();
+            }
+        }
+    }
+    
+    /**
+     * Stops ticking this controller, and its tiles, until something wakes it, see wake
+     * <p>
+     * meant for tick or disassembledTick, isolated or not, when there is nothing for them to do
+     * it's applied once the tick is done, and only if every tile that would tick is asleep and there's no structural work or blockstate changes left
+     */
+    protected final void sleep() {
+        sleepRequest = 0;
+    }
+    
+    /**
+     * Same as sleep, but it's also woken after the given number of ticks
+     */
+    protected final void sleepFor(long ticks) {
+        sleepRequest = Math.max(1, ticks);
+    }
+    
+    private void applySleepRequest() {
+        long request = sleepRequest;
+        sleepRequest = -1;
+        if (request < 0 || asleep || blocks.isEmpty()) {
+            return;
+        }
+        if (state == AssemblyState.ASSEMBLED && !toTick.isEmpty()) {
+            return;
+        }
+        // a validation can be waiting for a later tick, pendingStructuralWork doesn't show it yet
+        if (blockStateTransition != null || pendingStructuralWork() != StructuralWork.NONE || updateAssemblyAtTick != Long.MAX_VALUE) {
+            return;
+        }
+        asleep = true;
+        wakeAtTick = request == 0 ? 0 : Phosphophyllite.tickNumber() + request;
+        Phosphophyllite.sleepController(this, wakeAtTick);
+    }
+    
+    /**
+     * Puts an asleep controller back to ticking, from the next time its world ticks multiblocks, does nothing if it's awake
+     * <p>
+     * attaching, detaching, block changes in its bounds, neighbor updates, capability lookups and right clicks on its tiles, and waking a tile already do this
+     * anything else that gives it something to do, like a gui changing a setting, has to call this
+     * server thread only
+     */
+    public final void wake() {
+        if (!asleep) {
+            return;
+        }
+        asleep = false;
+        wakeAtTick = 0;
+        Phosphophyllite.wakeController(this);
+    }
+    
+    public final boolean isAsleep() {
+        return asleep;
+    }
+    
+    /**
+     * Stops ticking the tile until wakeTile, safe to call from its own tick
+     * server thread only
+     */
+    public final void sleepTile(ITickableMultiblockTile tile) {
+        if (tickingTiles) {
+            pendingTileSleeps.put(tile, Boolean.TRUE);
+            return;
+        }
+        if (toTick.remove(tile)) {
+            asleepTiles.add(tile);
+        }
+    }
+    
+    /**
+     * Puts the tile back to ticking, waking this controller too if it's asleep
+     * server thread only, not from an isolated tick
+     */
+    public final void wakeTile(ITickableMultiblockTile tile) {
+        if (tickingTiles) {
+            pendingTileSleeps.put(tile, Boolean.FALSE);
+            return;
+        }
+        if (asleepTiles.remove(tile)) {
+            toTick.add(tile);
+            wake();
+        }
+    }
+    
+    /**
+     * Takes every block from a controller of the same class, in bulk
+     * tiles were already accepted by an identical validator, so only the per tile pointers and callbacks are done one at a time
+     * leaves the other controller empty
+     */
+    private void adoptBlocks(ControllerType otherController) {
+        final MultiblockController<?, ?, ?> other = otherController;
+        
+        if (updateExtremes || other.updateExtremes || blocks.isEmpty() || other.blocks.isEmpty()) {
+            updateExtremes = true;
+        } else {
+            // the combined extreme is whichever is further out, or both counts if they are in the same place
+            if (other.minCoord.x < minCoord.x) {
+                minCoord.x = other.minCoord.x;
+                minExtremeBlocks.x = other.minExtremeBlocks.x;
+            } else if (other.minCoord.x == minCoord.x) {
+                minExtremeBlocks.x += other.minExtremeBlocks.x;
+            }
+            if (other.minCoord.y < minCoord.y) {
+                minCoord.y = other.minCoord.y;
+                minExtremeBlocks.y = other.minExtremeBlocks.y;
+            } else if (other.minCoord.y == minCoord.y) {
+                minExtremeBlocks.y += other.minExtremeBlocks.y;
+            }
+            if (other.minCoord.z < minCoord.z) {
+                minCoord.z = other.minCoord.z;
+                minExtremeBlocks.z = other.minExtremeBlocks.z;
+            } else if (other.minCoord.z == minCoord.z) {
+                minExtremeBlocks.z += other.minExtremeBlocks.z;
+            }
+            if (other.maxCoord.x > maxCoord.x) {
+                maxCoord.x = other.maxCoord.x;
+                maxExtremeBlocks.x = other.maxExtremeBlocks.x;
+            } else if (other.maxCoord.x == maxCoord.x) {
+                maxExtremeBlocks.x += other.maxExtremeBlocks.x;
+            }
+            if (other.maxCoord.y > maxCoord.y) {
+                maxCoord.y = other.maxCoord.y;
+                maxExtremeBlocks.y = other.maxExtremeBlocks.y;
+            } else if (other.maxCoord.y == maxCoord.y) {
+                maxExtremeBlocks.y += other.maxExtremeBlocks.y;
+            }
+            if (other.maxCoord.z > maxCoord.z) {
+                maxCoord.z = other.maxCoord.z;
+                maxExtremeBlocks.z = other.maxExtremeBlocks.z;
+            } else if (other.maxCoord.z == maxCoord.z) {
+                maxExtremeBlocks.z += other.maxExtremeBlocks.z;
+            }
+        }
+        
+        stats.recordAttached(otherController.blocks.size());
+        // has to be before the take, it empties the other map
+        otherController.blocks.forEachSectionOccupancy(changedBlocks::markAll);
+        toTick.addAll(otherController.toTick);
+        // merging is reason enough to wake them
+        toTick.addAll(other.asleepTiles);
+        assemblyAttemptedTiles.addAll(otherController.assemblyAttemptedTiles);
+        onAssemblyTiles.addAll(otherController.onAssemblyTiles);
+        onDisassemblyTiles.addAll(otherController.onDisassemblyTiles);
+        
+        blocks.takeAll(otherController.blocks, tile -> {
+            if (tile.isSaveDelegate) {
+                if (hasSaveDelegate) {
+                    tile.isSaveDelegate = false;
+                } else {
+                    hasSaveDelegate = true;
+                }
+            }
+            tile.controller = self();
+            tile.preExistingBlock = false;
+            onPartPlaced(tile);
+        });
+        
+        memberHash += other.memberHash;
+        other.memberHash = 0;
+        otherController.toTick.clear();
+        other.asleepTiles.clear();
+        otherController.assemblyAttemptedTiles.clear();
+        otherController.onAssemblyTiles.clear();
+        otherController.onDisassemblyTiles.clear();
+        other.hasSaveDelegate = false;
+        
+        updateAssemblyAtTick = Phosphophyllite.tickNumber() + 1;
+        structureVersion++;
+    }
+    
+    /**
+     * Incremented every time a block is attached or detached
+     * anything computed for an older version is stale
+     */
+    protected final long structureVersion() {
+        return structureVersion;
+    }
+    
+    /**
+     * Called right before the assembly state is re-evaluated, with the min/max coordinates already updated
+     * return false to defer the evaluation, and call {@link #requestAssemblyValidation()} once ready
+     *
+     * @return if the assembly validator can be run now
+     */
+    protected boolean readyForAssemblyValidation() {
+        return true;
+    }
+    
+    /**
+     * If the assembly validator only depends on which block is where in the bounding box
+     * the fingerprint only hashes the multiblock's own blocks, any other block in the bounding box changing with a block update drops it
+     * when true, a paused multiblock that reloads with exactly the blocks it had when it last passed is resumed without running the validator
+     * the validator is still run fully on the tick after, as blocks set without a block update don't drop the fingerprint
+     * return false if validation also depends on something else, like data in the tiles
+     */
+    protected boolean fingerprintCoversValidation() {
+        return true;
+    }
+    
+    /**
+     * Positions attached, detached, or changed in the world inside the bounding box, since the last call or assembly validation
+     * the returned set is the callers to keep, later changes go to a new set
+     */
+    protected final SectionDirtySet takeChangedBlocks() {
+        SectionDirtySet changed = changedBlocks;
+        changedBlocks = new SectionDirtySet();
+        return changed;
+    }
+    
+    /**
+     * Called when a block inside the bounding box changes in the world
+     * a block that isn't part of the multiblock can make it valid or invalid, so that asks for a validation
+     * parts of the multiblock changing their blockstate don't, being added or removed already does
+     */
+    public final void blockChanged(BlockPos pos) {
+        awaitIsolatedTick();
+        wake();
+        changedBlocks.mark(pos.getX(), pos.getY(), pos.getZ());
+        if (blocks.getTile(pos) == null) {
+            // the fingerprint doesn't hash blocks that aren't part of it, so it can't tell this changed
+            // if it's still valid, the next validation that passes takes a new one
+            assembledFingerprint = null;
+            resumeFingerprint = null;
+            requestAssemblyValidation();
+        }
+    }
+    
+    /**
+     * Called right after a resume that skipped the validator, a validation has been requested for the next tick
+     * that one has to look at the whole structure, anything kept from validations before the resume has to be dropped
+     */
+    protected void onResumedWithoutValidation() {
+    }
+    
+    /**
+     * Re-evaluates the assembly state on the next update
+     */
+    protected final void requestAssemblyValidation() {
+        updateAssemblyAtTick = Long.MIN_VALUE;
     }
     
     public void suicide() {
+        awaitIsolatedTick();
         TileMap<TileType> blocks = new TileMap<>();
         blocks.addAll(this.blocks);
         blocks.forEachTile(MultiblockTile::onChunkUnloaded);
         Phosphophyllite.removeController(this);
     }
     
-    private void updateAssemblyState() {
+    /**
+     * A paused multiblock that is back exactly as it was when it last passed validation, doesn't need to be validated before it resumes
+     * nothing can change in unloaded chunks, and a block update for a block that isn't part of it in a loaded chunk drops the fingerprint
+     * blocks set without a block update don't, if part of it stayed loaded those could have changed, so the resume is followed by a full validation
+     */
+    private boolean canResumeFromFingerprint() {
+        return state == AssemblyState.PAUSED && resumeFingerprint != null && PhosphophylliteConfig.Multiblock.ResumeFromFingerprint && fingerprintCoversValidation()
+                && resumeFingerprint.matches(blocks.size(), minCoord, maxCoord, memberHash);
+    }
+    
+    /**
+     * @param resume skip the validator, see canResumeFromFingerprint
+     */
+    private void updateAssemblyState(boolean resume) {
         AssemblyState oldState = state;
         boolean validated = false;
         lastValidationError = null;
-        try {
-            validated = assemblyValidator.validate(self());
-        } catch (ValidationError e) {
-            lastValidationError = e;
+        if (resume) {
+            validated = true;
+        } else {
+            try {
+                validated = assemblyValidator.validate(self());
+            } catch (ValidationError e) {
+                lastValidationError = e;
+            }
         }
-        if (validated) {
+        // only blocks that aren't part of it changed, and it's still valid, so there is nothing to redo
+        boolean unchanged = validated && oldState == AssemblyState.ASSEMBLED && assembledStructureVersion == structureVersion;
+        if (validated && !unchanged) {
             state = AssemblyState.ASSEMBLED;
+            assembledStructureVersion = structureVersion;
+            assembledFingerprint = new StructureFingerprint(blocks.size(), minCoord, maxCoord, memberHash);
+            resumeFingerprint = null;
+            finishNBTEncode();
             if (cachedNBT != null) {
                 read(cachedNBT.getCompound("userdata"));
                 shouldUpdateNBT = true;
@@ -466,9 +1025,14 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
                 tile.isSaveDelegate = true;
                 hasSaveDelegate = true;
             }
+        } else if (validated) {
+            if (assembledFingerprint == null) {
+                assembledFingerprint = new StructureFingerprint(blocks.size(), minCoord, maxCoord, memberHash);
+            }
         } else {
             if (oldState == AssemblyState.ASSEMBLED) {
                 state = AssemblyState.DISASSEMBLED;
+                assembledFingerprint = null;
                 onDisassembled();
                 disassembledBlockStates();
                 updateCachedNBT();
@@ -488,28 +1052,82 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
     }
     
     private void assembledBlockStates() {
-        final HashMap<BlockPos, BlockState> newStates = new LinkedHashMap<>();
-        blocks.forEach((pos, tile) -> {
-            BlockState state = tile.assembledBlockState();
-            if (state != tile.getBlockState()) {
-                newStates.put(pos, state);
-                tile.setBlockState(state);
-            }
-        });
-        Util.setBlockStates(newStates, world);
+        startBlockStateTransition(true);
     }
     
     private void disassembledBlockStates() {
-        final HashMap<BlockPos, BlockState> newStates = new LinkedHashMap<>();
-        blocks.forEach((pos, tile) -> {
-            BlockState state = tile.disassembledBlockState();
+        startBlockStateTransition(false);
+    }
+    
+    /**
+     * Starts moving every block to its assembled or disassembled blockstate, replacing any transition already going
+     * up to the configured number of blocks are done right away, the rest a chunk every tick after
+     */
+    private void startBlockStateTransition(boolean assembled) {
+        transitionToAssembled = assembled;
+        if (blockStateTransition == null) {
+            blockStateTransition = new ArrayList<>(blocks.size());
+        } else {
+            // some of these may not be in this controller anymore
+            blockStateTransition.forEach(tile -> tile.blockStatePending = false);
+            blockStateTransition.clear();
+        }
+        blocks.forEachTile(tile -> {
+            tile.blockStatePending = true;
+            blockStateTransition.add(tile);
+        });
+        continueBlockStateTransition();
+    }
+    
+    /**
+     * Takes over the rest of a merged controller's transition, those tiles go to whichever state this controller is in
+     * if that changes, validation after the merge starts a new transition that covers them anyway
+     */
+    private void adoptBlockStateTransition(ControllerType otherController) {
+        MultiblockController<ControllerType, TileType, BlockType> other = otherController;
+        if (other.blockStateTransition == null) {
+            return;
+        }
+        if (blockStateTransition == null) {
+            blockStateTransition = new ArrayList<>(other.blockStateTransition.size());
+            transitionToAssembled = state == AssemblyState.ASSEMBLED;
+        }
+        blockStateTransition.addAll(other.blockStateTransition);
+        other.blockStateTransition = null;
+    }
+    
+    private void continueBlockStateTransition() {
+        if (blockStateTransition == null) {
+            return;
+        }
+        MultiblockJFREvents.BlockStateApplication event = new MultiblockJFREvents.BlockStateApplication();
+        event.begin();
+        final long perTick = PhosphophylliteConfig.Multiblock.BlockStatesPerTick;
+        final int end = blockStateTransition.size();
+        final int start = perTick <= 0 ? 0 : (int) Math.max(0, end - perTick);
+        final BlockStateBatch newStates = new BlockStateBatch();
+        for (int i = end - 1; i >= start; i--) {
+            TileType tile = blockStateTransition.get(i);
+            tile.blockStatePending = false;
+            if (tile.controller != this || tile.isRemoved() || blocks.getTile(tile.getBlockPos()) != tile) {
+                // detached, moved to another controller, or its chunk unloaded, since the transition started
+                // chunk unloads don't clear the controller, and writing the state would load the chunk back
+                continue;
+            }
+            BlockState state = transitionToAssembled ? tile.assembledBlockState() : tile.disassembledBlockState();
             if (state != tile.getBlockState()) {
-                newStates.put(pos, state);
+                newStates.set(tile.getBlockPos(), state);
                 tile.setBlockState(state);
-                ;
             }
-        });
-        Util.setBlockStates(newStates, world);
+        }
+        blockStateTransition.subList(start, end).clear();
+        if (blockStateTransition.isEmpty()) {
+            blockStateTransition = null;
+        }
+        newStates.apply(world);
+        event.changedStates = newStates.size();
+        event.assembled = transitionToAssembled;
+        event.commitFor(this);
     }
     
     /**
@@ -518,6 +1136,7 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
      * @param nbt previously returned by getNBT that represents this multiblock
      */
     final void readNBT(CompoundTag nbt) {
+        awaitIsolatedTick();
         if (!nbt.isEmpty()) {
             cachedNBT = nbt.copy();
             CompoundTag multiblockData = cachedNBT.getCompound("multiblockData");
@@ -528,6 +1147,7 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
                 // because minecraft is dumb, and saves chunks before unloading them, i need to treat assembled as paused too
                 if (state == AssemblyState.DISASSEMBLED && (nbtState == AssemblyState.PAUSED || nbtState == AssemblyState.ASSEMBLED)) {
                     state = AssemblyState.PAUSED;
+                    resumeFingerprint = StructureFingerprint.read(multiblockData.getCompound("fingerprint"));
                 }
             }
         }
@@ -543,24 +1163,129 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
      */
     @Nonnull
     final CompoundTag getNBT() {
-        if (shouldUpdateNBT) {
-            shouldUpdateNBT = false;
+        awaitIsolatedTick();
+        boolean mustBeCurrent = currentNBTOnSave || Phosphophyllite.isServerStopping() || (cachedNBT == null && nbtEncode == null);
+        if (shouldUpdateNBT && mustBeCurrent) {
+            currentNBTOnSave = false;
             updateCachedNBT();
+        } else {
+            // autosaves take the last snapshot, taken shortly before the autosave, it may just not be done encoding
+            finishNBTEncode();
+            if (shouldUpdateNBT && !remarkDirtyQueued) {
+                // this save is behind, so its chunks are saved again later, with a newer snapshot or on unload
+                // not marked here, this is mid save, a flush save would keep saving them, and so would every chunk sent to a client
+                remarkDirtyQueued = true;
+                Queues.serverThread.enqueue(this::remarkDirty);
+            }
         }
         return cachedNBT == null ? new CompoundTag() : cachedNBT;
     }
     
+    private void remarkDirty() {
+        remarkDirtyQueued = false;
+        if (shouldUpdateNBT) {
+            markDirty();
+        }
+    }
+    
+    /**
+     * The next save is the last one before one of its chunks unloads, so it saves current NBT instead of the last snapshot
+     */
+    final void unloadSavePending() {
+        currentNBTOnSave = true;
+    }
+    
+    /**
+     * Snapshots and encodes right now, on this thread
+     */
     private void updateCachedNBT() {
-        cachedNBT = new CompoundTag();
-        cachedNBT.put("userdata", write());
+        finishNBTEncode();
+        IncrementalNBT.Encode encode = snapshotNBT();
+        encode.run();
+        nbtEncode = encode;
+        finishNBTEncode();
+    }
+    
+    /**
+     * Dirty multiblocks are snapshot once shortly before each autosave and encoded off thread, the autosave takes that snapshot as is
+     * so nothing is written on the tick thread between autosaves, and multiblocks that are marked dirty every tick don't snapshot during the save
+     */
+    private void updateNBTInBackground() {
+        if (nbtEncode != null && nbtEncode.finished()) {
+            finishNBTEncode();
+        }
+        if (!shouldUpdateNBT || nbtEncode != null || lastTick - lastNBTSnapshotTick < PhosphophylliteConfig.Multiblock.NBTSnapshotInterval || !autosaveSoon()) {
+            return;
+        }
+        lastNBTSnapshotTick = lastTick;
+        IncrementalNBT.Encode encode = snapshotNBT();
+        nbtEncode = encode;
+        encode.done = Queues.offThread.enqueue(encode);
+    }
+    
+    private boolean autosaveSoon() {
+        MinecraftServer server = world.getServer();
+        if (server == null) {
+            return false;
+        }
+        int ticksUntilAutosave = AUTOSAVE_INTERVAL - server.getTickCount() % AUTOSAVE_INTERVAL;
+        return ticksUntilAutosave <= PhosphophylliteConfig.Multiblock.NBTSnapshotInterval;
+    }
+    
+    /**
+     * Waits for the encode of the last snapshot, if there is one, and makes it the cached NBT
+     */
+    private void finishNBTEncode() {
+        IncrementalNBT.Encode encode = nbtEncode;
+        if (encode == null) {
+            return;
+        }
+        nbtEncode = null;
+        cachedNBT = encode.join();
+    }
+    
+    /**
+     * Only the server thread part, write() and the section snapshots, is timed
+     */
+    private IncrementalNBT.Encode snapshotNBT() {
+        long startTime = System.nanoTime();
+        MultiblockJFREvents.NBTWrite event = new MultiblockJFREvents.NBTWrite();
+        event.begin();
+        shouldUpdateNBT = false;
         CompoundTag multiblockData = new CompoundTag();
-        cachedNBT.put("multiblockData", multiblockData);
         {
             // instead of storing an exhaustive list of all the blocks we had
             // just save the controller hash, and make sure we have the right number
             multiblockData.putInt("controller", hashCode());
             multiblockData.putString("assemblyState", state.toString());
+            StructureFingerprint fingerprint = assembledFingerprint != null ? assembledFingerprint : resumeFingerprint;
+            if (state != AssemblyState.DISASSEMBLED && fingerprint != null) {
+                multiblockData.put("fingerprint", fingerprint.write());
+            }
         }
+        IncrementalNBT.Encode encode = incrementalNBT.snapshot(write(), multiblockData);
+        event.commitFor(this);
+        stats.recordNBTWrite(System.nanoTime() - startTime);
+        return encode;
+    }
+    
+    /**
+     * Adds a section to the saved NBT that is only rebuilt when marked dirty, instead of every time the multiblock is saved
+     * <p>
+     * call from the constructor, sections can't be removed
+     *
+     * @param key where the section is saved, in the same compound as write(), which it overrides
+     */
+    protected final void registerNBTSection(String key, NBTSection section) {
+        incrementalNBT.register(key, section);
+    }
+    
+    /**
+     * Marks the multiblock dirty, and the section as needing to be rebuilt the next time it is saved
+     */
+    protected final void markNBTSectionDirty(String key) {
+        incrementalNBT.markDirty(key);
+        markDirty();
     }
     
     /**
@@ -568,7 +1293,18 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
      */
     protected final void markDirty() {
         shouldUpdateNBT = true;
-        Util.markRangeDirty(world, new Vector2i(minCoord.x, minCoord.z), new Vector2i(maxCoord.x, maxCoord.z));
+        if (inIsolatedTick) {
+            markDirtyDeferred = true;
+            return;
+        }
+        // only chunks that have blocks of this multiblock in them, and only if they are loaded
+        // an unloaded one has nothing of this multiblock left to save, it was saved as it unloaded
+        blocks.forEachChunk(chunkPos -> {
+            LevelChunk chunk = world.getChunkSource().getChunkNow(ChunkPos.getX(chunkPos), ChunkPos.getZ(chunkPos));
+            if (chunk != null) {
+                chunk.markUnsaved();
+            }
+        });
     }
     
     @Nonnull
@@ -590,7 +1326,9 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
                 "Max " + maxCoord.toString() + "\n" +
                 "Controller: " + this + "\n" +
                 "Last Error: " + (lastValidationError == null ? "N/A" : lastValidationError.getTextComponent().getString()) + "\n" +
-                "AssemblyState: " + state + "\n";
+                "AssemblyState: " + state + "\n" +
+                "ID: " + id + "\n" +
+                stats.describe();
     }
     
     
@@ -616,6 +1354,22 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
     public void tick() {
     }
     
+    /**
+     * Return true if tick only reads and writes this controller's own state
+     * <p>
+     * assembled isolated controllers have tick called in parallel with the other isolated controllers in the same world
+     * so no world access, no other controllers, no shared mutable statics, and its own tiles only as plain fields
+     * markDirty is fine, it's held until the controller is back on the server thread
+     * tile ticks happen after every isolated controller in the world is done, back on the server thread
+     * with AsyncLevelTicks that is at the end of the server tick, see awaitIsolatedTick
+     * disassembledTick and everything structural is always on the server thread
+     *
+     * @return if tick can be called off the server thread
+     */
+    public boolean isTickIsolated() {
+        return false;
+    }
+    
     /**
      * Called at the end of a tick for dissassembled multiblocks only
      * not called if the multiblock is assembled or paused
@@ -701,7 +1455,7 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
      * called after @read but before first call to @tick
      */
     protected void onUnpaused() {
-    
+        
     }
     
     /**
@@ -718,6 +1472,8 @@ public class MultiblockController<ControllerType extends MultiblockController<Co
      * Create an NBT tag to be saved and re-read upon multiblock re-assembly
      * <p>
      * Can be called at any time, and multiblock must be able to resume from this NBT regardless of its current state
+     * the returned tag, and anything in it, must not be changed afterwards, it may be saved from another thread
+     * parts that are expensive to build and rarely change should be an NBTSection instead
      *
      * @return the NBT to save
      */
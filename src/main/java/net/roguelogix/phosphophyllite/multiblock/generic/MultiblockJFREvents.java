@@ -0,0 +1,111 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR events for the multiblock lifecycle, they show up in any normal JFR recording next to GC and the server's own ticking
+ * <p>
+ * cheap enough to leave in when no recording is running, commit is a no-op then
+ */
+public class MultiblockJFREvents {
+    
+    @Category({"Phosphophyllite", "Multiblock"})
+    public static abstract class ControllerEvent extends Event {
+        @Label("Controller ID")
+        @Description("-1 if the event isn't for a single controller")
+        public long controllerID = -1;
+        
+        @Label("Block Count")
+        @Description("Blocks in the controller when the event ended, or in the batch if it isn't for a single controller")
+        public int blockCount;
+        
+        /**
+         * Ends the event, and commits it if it's enabled and over the threshold
+         */
+        void commitFor(MultiblockController<?, ?, ?> controller) {
+            end();
+            commitEndedFor(controller);
+        }
+        
+        /**
+         * Commits an event that was already ended, for events that can only be committed well after they ended
+         */
+        void commitEndedFor(MultiblockController<?, ?, ?> controller) {
+            if (shouldCommit()) {
+                controllerID = controller.id();
+                blockCount = controller.blocks.size();
+                commit();
+            }
+        }
+    }
+    
+    @Name("phosphophyllite.AttachBatch")
+    @Label("Attach Batch")
+    @Description("Newly loaded or placed tiles attaching to their neighbors, for a whole world")
+    public static class AttachBatch extends ControllerEvent {
+        @Label("Tiles")
+        public int tiles;
+    }
+    
+    @Name("phosphophyllite.DetachBatch")
+    @Label("Detach Batch")
+    @Description("Pieces that split off a controller, or a chunk's worth of tiles unloading, being detached")
+    public static class DetachBatch extends ControllerEvent {
+        @Label("Tiles")
+        public int tiles;
+    }
+    
+    @Name("phosphophyllite.SplitScan")
+    @Label("Split Scan")
+    public static class SplitScan extends ControllerEvent {
+        @Label("Pieces")
+        @Description("Pieces that split off")
+        public int pieces;
+    }
+    
+    @Name("phosphophyllite.Merge")
+    @Label("Merge")
+    public static class Merge extends ControllerEvent {
+        @Label("Merged Controller ID")
+        public long mergedControllerID;
+        
+        @Label("Merged Block Count")
+        public int mergedBlockCount;
+        
+        @Label("Same Class")
+        @Description("Same class merges move blocks across in bulk")
+        public boolean sameClass;
+    }
+    
+    @Name("phosphophyllite.AssemblyValidation")
+    @Label("Assembly Validation")
+    public static class AssemblyValidation extends ControllerEvent {
+        @Label("Volume")
+        @Description("Blocks in the bounding box")
+        public long volume;
+        
+        @Label("Result")
+        @Description("The assembly state after validation, or DEFERRED if the controller wasn't ready for it")
+        public String result;
+    }
+    
+    @Name("phosphophyllite.BlockStateApplication")
+    @Label("Block State Application")
+    public static class BlockStateApplication extends ControllerEvent {
+        @Label("Changed States")
+        public int changedStates;
+        
+        @Label("Assembled")
+        @Description("True for assembled block states, false for disassembled")
+        public boolean assembled;
+    }
+    
+    @Name("phosphophyllite.NBTWrite")
+    @Label("NBT Write")
+    public static class NBTWrite extends ControllerEvent {
+    }
+}
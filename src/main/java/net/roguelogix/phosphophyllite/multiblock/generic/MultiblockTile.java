@@ -6,6 +6,7 @@ import net.minecraft.core.Direction;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.network.chat.TextComponent;
 import net.minecraft.network.chat.TranslatableComponent;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.InteractionHand;
 import net.minecraft.world.InteractionResult;
 import net.minecraft.world.entity.player.Player;
@@ -14,12 +15,15 @@ import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.entity.BlockEntity;
 import net.minecraft.world.level.block.entity.BlockEntityType;
 import net.minecraft.world.level.block.state.BlockState;
-import net.minecraft.world.level.chunk.ChunkAccess;
-import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraftforge.common.capabilities.Capability;
+import net.minecraftforge.common.util.LazyOptional;
 import net.roguelogix.phosphophyllite.Phosphophyllite;
 import net.roguelogix.phosphophyllite.items.DebugTool;
+import net.roguelogix.phosphophyllite.threading.Queues;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 
 import static net.roguelogix.phosphophyllite.multiblock.generic.MultiblockBlock.ASSEMBLED;
 
@@ -31,8 +35,6 @@ public abstract class MultiblockTile<ControllerType extends MultiblockController
         return (TileType) this;
     }
     
-    long lastSavedTick = 0;
-    
     public void attemptAttach() {
         controller = null;
         attemptAttach = true;
@@ -42,9 +44,15 @@ public abstract class MultiblockTile<ControllerType extends MultiblockController
         }
     }
     
-    private boolean attemptAttach = true;
+    boolean attemptAttach = true;
+    // in an attach batch, and not attached to anything yet
+    boolean inAttachBatch = false;
+    // queued by its controller detaching it, rather than being placed or loaded
+    boolean attachFromDetach = false;
     private boolean allowAttach = true;
     boolean isSaveDelegate = false;
+    // waiting on the controller to set its blockstate, which covers connected textures too
+    boolean blockStatePending = false;
     
     public MultiblockTile(@Nonnull BlockEntityType<?> tileEntityTypeIn, BlockPos pos, BlockState state) {
         super(tileEntityTypeIn, pos, state);
@@ -52,41 +60,35 @@ public abstract class MultiblockTile<ControllerType extends MultiblockController
     
     public void attachToNeighbors() {
         assert level != null;
-        if (allowAttach && attemptAttach && !level.isClientSide) {
-            attemptAttach = false;
-            Block thisBlock = this.getBlockState().getBlock();
-            if (!(thisBlock instanceof MultiblockBlock)) {
-                // can happen if a block is broken in the same tick it is placed
-                return;
-            }
-            if (((MultiblockBlock<?, ?, ?>) thisBlock).usesAssemblyState()) {
-                level.setBlock(this.worldPosition, this.getBlockState().setValue(ASSEMBLED, false), 3);
-            }
-            if (controller != null) {
-                controller.detach(self());
-                controller = null;
-            }
-            // at this point, i need to get or create a controller
-            BlockPos.MutableBlockPos possibleTilePos = new BlockPos.MutableBlockPos();
-            for (Direction value : Direction.values()) {
-                possibleTilePos.set(worldPosition);
-                possibleTilePos.move(value);
-                ChunkAccess chunk = level.getChunk(possibleTilePos.getX() >> 4, possibleTilePos.getZ() >> 4, ChunkStatus.FULL, false);
-                if (chunk != null) {
-                    BlockEntity possibleTile = chunk.getBlockEntity(possibleTilePos);
-                    if (possibleTile instanceof MultiblockTile) {
-                        if (((MultiblockTile<?, ?, ?>) possibleTile).controller != null) {
-                            ((MultiblockTile<?, ?, ?>) possibleTile).controller.attemptAttach(this);
-                        } else {
-                            ((MultiblockTile<?, ?, ?>) possibleTile).attemptAttach = true;
-                        }
-                    }
-                }
-            }
-            if (controller == null) {
-                createController().attemptAttach(self());
-            }
+        ArrayList<MultiblockTile<?, ?, ?>> tiles = new ArrayList<>(1);
+        tiles.add(this);
+        AttachBatch.attach(level, tiles);
+    }
+    
+    /**
+     * Everything before looking for neighbors, done for the whole batch before any tile in it looks
+     *
+     * @return if this tile is attaching
+     */
+    boolean prepareAttach() {
+        assert level != null;
+        if (!allowAttach || !attemptAttach || level.isClientSide) {
+            return false;
+        }
+        attemptAttach = false;
+        Block thisBlock = this.getBlockState().getBlock();
+        if (!(thisBlock instanceof MultiblockBlock)) {
+            // can happen if a block is broken in the same tick it is placed
+            return false;
+        }
+        if (((MultiblockBlock<?, ?, ?>) thisBlock).usesAssemblyState()) {
+            level.setBlock(this.worldPosition, this.getBlockState().setValue(ASSEMBLED, false), 3);
         }
+        if (controller != null) {
+            controller.detach(self());
+            controller = null;
+        }
+        return true;
     }
     
     @Override
@@ -167,12 +169,46 @@ public abstract class MultiblockTile<ControllerType extends MultiblockController
         return compound;
     }
     
+    /**
+     * Called before the tile's chunk is saved to unload, the controller saves current NBT then instead of its last snapshot
+     */
+    public final void onChunkUnloading() {
+        if (controller != null) {
+            controller.unloadSavePending();
+        }
+    }
+    
     protected String getDebugInfo() {
         return controller.getDebugInfo();
     }
     
+    /**
+     * Wakes the controller, whatever is asking for the capability is likely about to use it
+     * overrides should call this, or wake the controller themselves
+     * <p>
+     * capabilities can be asked for from any thread, off the server thread the wake is queued for it instead
+     */
+    @Nonnull
+    @Override
+    public <T> LazyOptional<T> getCapability(@Nonnull Capability<T> cap, @Nullable Direction side) {
+        ControllerType controller = this.controller;
+        if (controller != null && level != null && !level.isClientSide) {
+            MinecraftServer server = level.getServer();
+            if (server != null && server.isSameThread()) {
+                controller.wake();
+            } else {
+                Queues.serverThread.enqueue(controller::wake);
+            }
+        }
+        return super.getCapability(cap, side);
+    }
+    
     @Nonnull
     public InteractionResult onBlockActivated(@Nonnull Player player, @Nonnull InteractionHand handIn) {
+        if (controller != null && level != null && !level.isClientSide) {
+            // likely opening a gui, which can change things
+            controller.wake();
+        }
         if (handIn == InteractionHand.MAIN_HAND) {
             if (player.getMainHandItem() == ItemStack.EMPTY && (!((MultiblockBlock) getBlockState().getBlock()).usesAssemblyState() || !getBlockState().getValue(ASSEMBLED))) {
                 if (controller != null && controller.assemblyState() != MultiblockController.AssemblyState.ASSEMBLED) {
@@ -199,13 +235,20 @@ public abstract class MultiblockTile<ControllerType extends MultiblockController
         return InteractionResult.PASS;
     }
     
+    /**
+     * This tile's part of its controller's StructureFingerprint
+     */
+    long fingerprint() {
+        return StructureFingerprint.hash(worldPosition, getBlockState().getBlock());
+    }
+    
     protected BlockState assembledBlockState() {
         BlockState state = getBlockState();
         //noinspection unchecked
         if (((BlockType) state.getBlock()).usesAssemblyState()) {
             state = state.setValue(MultiblockBlock.ASSEMBLED, true);
         }
-        return state;
+        return connectedTextureState(state);
     }
     
     protected BlockState disassembledBlockState() {
@@ -214,6 +257,15 @@ public abstract class MultiblockTile<ControllerType extends MultiblockController
         if (((BlockType) state.getBlock()).usesAssemblyState()) {
             state = state.setValue(MultiblockBlock.ASSEMBLED, false);
         }
-        return state;
+        return connectedTextureState(state);
+    }
+    
+    private BlockState connectedTextureState(BlockState state) {
+        //noinspection unchecked
+        BlockType block = (BlockType) state.getBlock();
+        if (!block.connectedTexture() || controller == null || level == null) {
+            return state;
+        }
+        return block.connectedTextureState(state, worldPosition, controller.blocks, level);
     }
 }
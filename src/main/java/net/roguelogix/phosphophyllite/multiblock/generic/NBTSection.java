@@ -0,0 +1,22 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import net.minecraft.nbt.Tag;
+
+import java.util.function.Supplier;
+
+/**
+ * Part of a multiblock's saved NBT that is only rebuilt after it's marked dirty
+ * <p>
+ * saved in the same compound as write(), under the key it was registered with, so read gets it back there
+ *
+ * @see MultiblockController#registerNBTSection(String, NBTSection)
+ */
+@FunctionalInterface
+public interface NBTSection {
+    /**
+     * Called on the server thread, copy out whatever encoding needs, the encoder can't touch the multiblock
+     *
+     * @return builds the tag, may be called on another thread
+     */
+    Supplier<Tag> snapshot();
+}
@@ -0,0 +1,72 @@
+package net.roguelogix.phosphophyllite.multiblock.generic;
+
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.core.BlockPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.block.Block;
+import net.roguelogix.phosphophyllite.repack.org.joml.Vector3ic;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Arrays;
+
+/**
+ * What a multiblock looked like when it last passed validation, block count, bounds, and a hash of which block is where
+ * <p>
+ * the hash is a sum over the member blocks, so the controller keeps it up to date as blocks attach and detach
+ * it only uses positions and registry names, so it's the same across restarts
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+final class StructureFingerprint {
+    
+    private final int blockCount;
+    private final int[] bounds;
+    private final long hash;
+    
+    StructureFingerprint(int blockCount, Vector3ic min, Vector3ic max, long hash) {
+        this(blockCount, new int[]{min.x(), min.y(), min.z(), max.x(), max.y(), max.z()}, hash);
+    }
+    
+    private StructureFingerprint(int blockCount, int[] bounds, long hash) {
+        this.blockCount = blockCount;
+        this.bounds = bounds;
+        this.hash = hash;
+    }
+    
+    static long hash(BlockPos pos, Block block) {
+        ResourceLocation name = block.getRegistryName();
+        long hash = pos.asLong() * 0x9E3779B97F4A7C15L + (name == null ? 0 : name.hashCode());
+        // splitmix64 finalizer, so the sum of neighboring positions doesn't cancel out
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+    
+    boolean matches(int blockCount, Vector3ic min, Vector3ic max, long hash) {
+        return this.blockCount == blockCount && this.hash == hash &&
+                bounds[0] == min.x() && bounds[1] == min.y() && bounds[2] == min.z() &&
+                bounds[3] == max.x() && bounds[4] == max.y() && bounds[5] == max.z();
+    }
+    
+    CompoundTag write() {
+        CompoundTag nbt = new CompoundTag();
+        nbt.putInt("blockCount", blockCount);
+        nbt.putIntArray("bounds", bounds);
+        nbt.putLong("hash", hash);
+        return nbt;
+    }
+    
+    @Nullable
+    static StructureFingerprint read(CompoundTag nbt) {
+        if (!nbt.contains("blockCount") || !nbt.contains("hash")) {
+            return null;
+        }
+        int[] bounds = nbt.getIntArray("bounds");
+        if (bounds.length != 6) {
+            return null;
+        }
+        return new StructureFingerprint(nbt.getInt("blockCount"), Arrays.copyOf(bounds, 6), nbt.getLong("hash"));
+    }
+}
@@ -8,6 +8,7 @@ import net.roguelogix.phosphophyllite.multiblock.generic.MultiblockBlock;
 import net.roguelogix.phosphophyllite.util.BlockStates;
 
 import javax.annotation.Nonnull;
+import java.util.IdentityHashMap;
 
 import static net.roguelogix.phosphophyllite.multiblock.rectangular.AxisPosition.*;
 
@@ -47,6 +48,52 @@ public abstract class RectangularMultiblockBlock<ControllerType extends Rectangu
         return false;
     }
     
+    private static final AxisPosition[] AXIS_POSITIONS = {LOWER, MIDDLE, UPPER};
+    
+    // only used from the server thread
+    private final IdentityHashMap<BlockState, BlockState[]> assembledStates = new IdentityHashMap<>();
+    
+    /**
+     * Axis position and facing for a block, from a table built once per base state
+     *
+     * @param state         the assembled state, before anything that depends on the position
+     * @param positionClass x * 9 + y * 3 + z, each 0 on the min side of the multiblock, 2 on the max side, 1 between them
+     * @return the state with the axis positions and facing set, if this block uses them
+     */
+    BlockState assembledState(BlockState state, int positionClass) {
+        BlockState[] table = assembledStates.get(state);
+        if (table == null) {
+            table = new BlockState[27];
+            for (int i = 0; i < 27; i++) {
+                int x = i / 9, y = (i / 3) % 3, z = i % 3;
+                BlockState positionState = state;
+                if (usesAxisPositions()) {
+                    positionState = positionState.setValue(X_AXIS_POSITION, AXIS_POSITIONS[x]);
+                    positionState = positionState.setValue(Y_AXIS_POSITION, AXIS_POSITIONS[y]);
+                    positionState = positionState.setValue(Z_AXIS_POSITION, AXIS_POSITIONS[z]);
+                }
+                if (usesFaceDirection()) {
+                    if (x == 0) {
+                        positionState = positionState.setValue(BlockStates.FACING, Direction.WEST);
+                    } else if (x == 2) {
+                        positionState = positionState.setValue(BlockStates.FACING, Direction.EAST);
+                    } else if (y == 0) {
+                        positionState = positionState.setValue(BlockStates.FACING, Direction.DOWN);
+                    } else if (y == 2) {
+                        positionState = positionState.setValue(BlockStates.FACING, Direction.UP);
+                    } else if (z == 0) {
+                        positionState = positionState.setValue(BlockStates.FACING, Direction.NORTH);
+                    } else if (z == 2) {
+                        positionState = positionState.setValue(BlockStates.FACING, Direction.SOUTH);
+                    }
+                }
+                table[i] = positionState;
+            }
+            assembledStates.put(state, table);
+        }
+        return table[positionClass];
+    }
+    
     public abstract boolean isGoodForInterior();
     
     public abstract boolean isGoodForExterior();
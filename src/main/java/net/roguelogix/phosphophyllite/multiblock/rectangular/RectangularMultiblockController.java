@@ -1,12 +1,19 @@
 package net.roguelogix.phosphophyllite.multiblock.rectangular;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.core.SectionPos;
 import net.minecraft.network.chat.TranslatableComponent;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Block;
+import net.roguelogix.phosphophyllite.PhosphophylliteConfig;
 import net.roguelogix.phosphophyllite.multiblock.generic.*;
 import net.roguelogix.phosphophyllite.repack.org.joml.Vector3i;
+import net.roguelogix.phosphophyllite.repack.org.joml.Vector3ic;
+import net.roguelogix.phosphophyllite.threading.Queues;
 import net.roguelogix.phosphophyllite.util.BlockStates;
-import net.roguelogix.phosphophyllite.util.Util;
+import net.roguelogix.phosphophyllite.util.ChunkSectionSnapshot;
+import net.roguelogix.phosphophyllite.util.SectionDirtySet;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -26,23 +33,63 @@ public class RectangularMultiblockController<ControllerType extends RectangularM
     protected final Vector3i minSize = new Vector3i();
     protected final Vector3i maxSize = new Vector3i();
     
+    /*
+     * block validators may be called off the server thread, see PhosphophylliteConfig.Multiblock.OffThreadValidation
+     * they only get the block, so as long as they dont touch the world or mutable state that's fine
+     */
     protected Validator<Block> cornerValidator = null;
     protected Validator<Block> frameValidator = null;
     protected Validator<Block> exteriorValidator = null;
     protected Validator<Block> interiorValidator = null;
     protected Validator<Block> genericValidator = null;
     
+    // structure version the block scan result is for, and the version currently being scanned
+    private long scannedVersion = -1;
+    private long scanningVersion = -1;
+    @Nullable
+    private RuntimeException scanError = null;
+    // where scanError was found, null if it wasnt an InvalidBlock
+    @Nullable
+    private Vector3i scanErrorPos = null;
+    
+    // changes no scan has looked at yet, and the changes the in flight scan is looking at
+    private SectionDirtySet uncheckedChanges = new SectionDirtySet();
+    @Nullable
+    private SectionDirtySet scanningChanges = null;
+    // bounds of the last scan, if it could see every section in them
+    // while the bounds stay the same, only the changed blocks need to be looked at again
+    private final Vector3i lastScanMin = new Vector3i();
+    private final Vector3i lastScanMax = new Vector3i();
+    private boolean lastScanComplete = false;
+    // validations since the last full scan, that only looked at changed blocks or reused the last result
+    private long scansSinceFullScan = 0;
+    
     private final Validator<ControllerType> mainValidator = controller -> {
-        int minX = controller.minCoord().x();
-        int minY = controller.minCoord().y();
-        int minZ = controller.minCoord().z();
-        int maxX = controller.maxCoord().x();
-        int maxY = controller.maxCoord().y();
-        int maxZ = controller.maxCoord().z();
+        validateDimensions();
+        if (scannedVersion != structureVersion()) {
+            // nothing was prepared for this version, so scan it here
+            final Vector3i min = new Vector3i(minCoord());
+            final Vector3i max = new Vector3i(maxCoord());
+            scansSinceFullScan = 0;
+            commitScan(scanBlocks(ChunkSectionSnapshot.captureRange(world, min, max), min, max, null), min, max, structureVersion());
+        }
+        if (scanError != null) {
+            throw scanError;
+        }
+        return true;
+    };
+    
+    private void validateDimensions() {
+        int minX = minCoord().x();
+        int minY = minCoord().y();
+        int minZ = minCoord().z();
+        int maxX = maxCoord().x();
+        int maxY = maxCoord().y();
+        int maxZ = maxCoord().z();
         
-        Vector3i[] allowedOrientations = new Vector3i[controller.orientationAgnostic ? 6 : controller.xzAgnostic ? 2 : 1];
+        Vector3i[] allowedOrientations = new Vector3i[orientationAgnostic ? 6 : xzAgnostic ? 2 : 1];
         
-        if (controller.orientationAgnostic) {
+        if (orientationAgnostic) {
             allowedOrientations[0] = new Vector3i(maxX - minX + 1, maxY - minY + 1, maxZ - minZ + 1);
             allowedOrientations[1] = new Vector3i(maxX - minX + 1, maxZ - minZ + 1, maxY - minY + 1);
             
@@ -51,7 +98,7 @@ public class RectangularMultiblockController<ControllerType extends RectangularM
             
             allowedOrientations[4] = new Vector3i(maxZ - minZ + 1, maxX - minX + 1, maxY - minY + 1);
             allowedOrientations[5] = new Vector3i(maxZ - minZ + 1, maxY - minY + 1, maxX - minX + 1);
-        } else if (controller.xzAgnostic) {
+        } else if (xzAgnostic) {
             allowedOrientations[0] = new Vector3i(maxX - minX + 1, maxY - minY + 1, maxZ - minZ + 1);
             allowedOrientations[1] = new Vector3i(maxZ - minZ + 1, maxY - minY + 1, maxX - minX + 1);
         } else {
@@ -63,22 +110,22 @@ public class RectangularMultiblockController<ControllerType extends RectangularM
             // if all are positive, technically zero is valid for them
             // dont know why you would use zero, but that's not my problem
             // i guess to lock out using the machine?
-            if ((controller.minSize.x | controller.minSize.y | controller.minSize.z) >= 0) {
+            if ((minSize.x | minSize.y | minSize.z) >= 0) {
                 if (
-                        allowedOrientation.x < controller.minSize.x ||
-                                allowedOrientation.y < controller.minSize.y ||
-                                allowedOrientation.z < controller.minSize.z
+                        allowedOrientation.x < minSize.x ||
+                                allowedOrientation.y < minSize.y ||
+                                allowedOrientation.z < minSize.z
                 ) {
                     continue;
                 }
             }
             // you can also just set one of these lower than the above
             // see the below bounds checks
-            if ((controller.maxSize.x | controller.maxSize.y | controller.maxSize.z) >= 0) {
+            if ((maxSize.x | maxSize.y | maxSize.z) >= 0) {
                 if (
-                        allowedOrientation.x > controller.maxSize.x ||
-                                allowedOrientation.y > controller.maxSize.y ||
-                                allowedOrientation.z > controller.maxSize.z
+                        allowedOrientation.x > maxSize.x ||
+                                allowedOrientation.y > maxSize.y ||
+                                allowedOrientation.z > maxSize.z
                 ) {
                     continue;
                 }
@@ -90,103 +137,302 @@ public class RectangularMultiblockController<ControllerType extends RectangularM
         if (dimensions == null) {
             throw new ValidationError(new TranslatableComponent("multiblock.error.phosphophyllite.dimensions",
                     allowedOrientations[0].x, allowedOrientations[0].y, allowedOrientations[0].z,
-                    controller.minSize.x, controller.minSize.y, controller.minSize.z,
-                    controller.maxSize.x, controller.maxSize.y, controller.maxSize.z));
+                    minSize.x, minSize.y, minSize.z,
+                    maxSize.x, maxSize.y, maxSize.z));
         }
         // or it didnt, at this point i dont really know, and you dont either, works(tm)
+    }
+    
+    @Override
+    protected void onResumedWithoutValidation() {
+        // nothing from before the resume is reused, the follow up scan looks at every block
+        scannedVersion = -1;
+        scanningVersion = -1;
+        scanningChanges = null;
+        lastScanComplete = false;
+    }
+    
+    @Override
+    protected boolean readyForAssemblyValidation() {
+        uncheckedChanges.addAll(takeChangedBlocks());
+        final long version = structureVersion();
+        // blocks that aren't part of it changing doesn't change the version, they still need to be looked at
+        if (scannedVersion == version && uncheckedChanges.isEmpty()) {
+            return true;
+        }
+        if (scanningVersion == version) {
+            // still waiting on the scan
+            return false;
+        }
+        try {
+            validateDimensions();
+        } catch (ValidationError ignored) {
+            // the validator will fail on this before it looks at any blocks
+            return true;
+        }
         
-        Util.chunkCachedBlockStateIteration(controller.minCoord(), controller.maxCoord(), controller.world, (blockState, pos) -> {
-            Block block = blockState.getBlock();
-            int extremes = 0;
-            if (pos.x == minX || pos.x == maxX) {
-                extremes++;
-            }
-            if (pos.y == minY || pos.y == maxY) {
-                extremes++;
-            }
-            if (pos.z == minZ || pos.z == maxZ) {
-                extremes++;
+        final Vector3i min = new Vector3i(minCoord());
+        final Vector3i max = new Vector3i(maxCoord());
+        // blocks set without a block update are never marked as changed, so every so often everything is looked at again
+        // and assembling always comes from a full scan, reusing results can only keep it assembled or disassembled
+        final boolean sameBounds = lastScanComplete && lastScanMin.equals(min) && lastScanMax.equals(max)
+                && scansSinceFullScan < PhosphophylliteConfig.Multiblock.FullScanInterval
+                && (scanError != null || assemblyState() == AssemblyState.ASSEMBLED);
+        if (sameBounds && scanErrorPos != null && !uncheckedChanges.contains(scanErrorPos.x, scanErrorPos.y, scanErrorPos.z)) {
+            // the block that failed last time is still there, so it still fails
+            scansSinceFullScan++;
+            scannedVersion = version;
+            return true;
+        }
+        if (sameBounds && scanError == null && uncheckedChanges.isEmpty()) {
+            scansSinceFullScan++;
+            scannedVersion = version;
+            return true;
+        }
+        
+        // the in flight scan is about to be ignored, so its changes need to be looked at again
+        if (scanningChanges != null) {
+            uncheckedChanges.addAll(scanningChanges);
+        }
+        final SectionDirtySet changes = uncheckedChanges;
+        uncheckedChanges = new SectionDirtySet();
+        scanningChanges = null;
+        scanningVersion = -1;
+        
+        // if the last scan passed, only the changed blocks can fail now
+        // if it failed on a block that changed, there is no telling what the next failure is, so look at everything
+        @Nullable final SectionDirtySet onlyCheck = sameBounds && scanError == null ? changes : null;
+        scansSinceFullScan = onlyCheck == null ? 0 : scansSinceFullScan + 1;
+        final Long2ObjectOpenHashMap<ChunkSectionSnapshot> snapshots = onlyCheck == null ? ChunkSectionSnapshot.captureRange(world, min, max) : ChunkSectionSnapshot.captureSections(world, onlyCheck.sections());
+        long blocksToCheck = onlyCheck == null ? (long) (max.x - min.x + 1) * (max.y - min.y + 1) * (max.z - min.z + 1) : onlyCheck.size();
+        if (!PhosphophylliteConfig.Multiblock.OffThreadValidation || blocksToCheck < PhosphophylliteConfig.Multiblock.OffThreadValidationMinVolume) {
+            commitScan(scanBlocks(snapshots, min, max, onlyCheck), min, max, version);
+            return true;
+        }
+        
+        scanningVersion = version;
+        scanningChanges = changes;
+        Queues.offThread.enqueue(() -> {
+            ScanResult result;
+            try {
+                result = scanBlocks(snapshots, min, max, onlyCheck);
+            } catch (RuntimeException e) {
+                // not a validation error, let it blow up on the server thread like it would have before
+                result = new ScanResult();
+                result.error = e;
             }
-            switch (extremes) {
-                case 3: {
-                    if (block instanceof RectangularMultiblockBlock && blockTypeValidator.validate((RectangularMultiblockBlock<?, ?, ?>) block)) {
-                        if (!((RectangularMultiblockBlock<?, ?, ?>) block).isGoodForCorner()) {
-                            throw new InvalidBlock(block, pos, "corner");
-                        } else {
-                            break;
-                        }
-                    } else if (controller.cornerValidator != null) {
-                        // can you be a corner?
-                        if (!controller.cornerValidator.validate(block)) {
-                            throw new InvalidBlock(block, pos, "corner");
-                        } else {
-                            break;
-                        }
-                    }
+            final ScanResult finalResult = result;
+            Queues.serverThread.enqueue(() -> {
+                if (scanningVersion != version) {
+                    // a newer scan took over, along with these changes
+                    return;
                 }
-                case 2: {
-                    if (block instanceof RectangularMultiblockBlock && blockTypeValidator.validate((RectangularMultiblockBlock<?, ?, ?>) block)) {
-                        if (!((RectangularMultiblockBlock<?, ?, ?>) block).isGoodForFrame()) {
-                            throw new InvalidBlock(block, pos, "frame");
-                        } else {
-                            break;
-                        }
-                    } else if (controller.frameValidator != null) {
-                        // dont care whats on the corners, but we do on the frame as a whole
-                        if (!controller.frameValidator.validate(block)) {
-                            throw new InvalidBlock(block, pos, "frame");
-                        } else {
-                            break;
-                        }
-                    }
+                scanningVersion = -1;
+                scanningChanges = null;
+                if (structureVersion() != version) {
+                    // blocks were added or removed while scanning, this result is stale
+                    // the change already requested another validation, which will start a new scan
+                    uncheckedChanges.addAll(changes);
+                    return;
+                }
+                commitScan(finalResult, min, max, version);
+                requestAssemblyValidation();
+            });
+        });
+        return false;
+    }
+    
+    private void commitScan(ScanResult result, Vector3ic min, Vector3ic max, long version) {
+        scanError = result.error;
+        scanErrorPos = result.errorPos;
+        // an incremental scan only happens on top of a complete one, so this carries forward
+        lastScanComplete = result.complete;
+        lastScanMin.set(min);
+        lastScanMax.set(max);
+        scannedVersion = version;
+    }
+    
+    private static class ScanResult {
+        @Nullable
+        RuntimeException error = null;
+        @Nullable
+        Vector3i errorPos = null;
+        boolean complete = true;
+    }
+    
+    /**
+     * Checks blocks in the range against the position validators
+     * only reads from the snapshots, so can be called from any thread
+     *
+     * @param onlyCheck if not null, only these positions are checked, anything outside the range is ignored
+     * @return the first error found, if any
+     */
+    private ScanResult scanBlocks(Long2ObjectOpenHashMap<ChunkSectionSnapshot> snapshots, Vector3ic min, Vector3ic max, @Nullable SectionDirtySet onlyCheck) {
+        final ScanResult result = new ScanResult();
+        final int minX = min.x(), minY = min.y(), minZ = min.z();
+        final int maxX = max.x(), maxY = max.y(), maxZ = max.z();
+        // validators only get the block, so each block only needs to be run through them once per scan
+        final Object2IntOpenHashMap<Block> validPositionsCache = new Object2IntOpenHashMap<>();
+        validPositionsCache.defaultReturnValue(-1);
+        if (onlyCheck != null) {
+            onlyCheck.forEach((x, y, z) -> {
+                if (x < minX || x > maxX || y < minY || y > maxY || z < minZ || z > maxZ) {
+                    return true;
+                }
+                ChunkSectionSnapshot snapshot = snapshots.get(SectionPos.asLong(x >> 4, y >> 4, z >> 4));
+                if (snapshot == null) {
+                    result.complete = false;
+                    snapshot = ChunkSectionSnapshot.EMPTY;
+                }
+                int extremes = ((x == minX || x == maxX) ? 1 : 0) + ((y == minY || y == maxY) ? 1 : 0) + ((z == minZ || z == maxZ) ? 1 : 0);
+                Block block = snapshot.get(x & 15, y & 15, z & 15).getBlock();
+                if ((validPositions(block, validPositionsCache) & (1 << extremes)) != 0) {
+                    return true;
                 }
-                case 1: {
-                    if (block instanceof RectangularMultiblockBlock && blockTypeValidator.validate((RectangularMultiblockBlock<?, ?, ?>) block)) {
-                        if (!((RectangularMultiblockBlock<?, ?, ?>) block).isGoodForExterior()) {
-                            throw new InvalidBlock(block, pos, "exterior");
-                        } else {
-                            break;
+                failScan(block, x, y, z, extremes, result);
+                return false;
+            });
+            return result;
+        }
+        final int[] paletteValidPositions = new int[256];
+        for (int sectionX = minX >> 4; sectionX <= maxX >> 4; sectionX++) {
+            for (int sectionZ = minZ >> 4; sectionZ <= maxZ >> 4; sectionZ++) {
+                for (int sectionY = minY >> 4; sectionY <= maxY >> 4; sectionY++) {
+                    ChunkSectionSnapshot snapshot = snapshots.get(SectionPos.asLong(sectionX, sectionY, sectionZ));
+                    if (snapshot == null) {
+                        result.complete = false;
+                        snapshot = ChunkSectionSnapshot.EMPTY;
+                    }
+                    final int startX = Math.max(minX, sectionX << 4), endX = Math.min(maxX, (sectionX << 4) + 15);
+                    final int startY = Math.max(minY, sectionY << 4), endY = Math.min(maxY, (sectionY << 4) + 15);
+                    final int startZ = Math.max(minZ, sectionZ << 4), endZ = Math.min(maxZ, (sectionZ << 4) + 15);
+                    
+                    // if every block in the palette is valid for every position type in this part of the section, so is every block in it
+                    final int paletteSize = snapshot.paletteSize();
+                    if (paletteSize != 0) {
+                        int positionsInSection = 1;
+                        positionsInSection = addAxisPositionTypes(positionsInSection, startX, endX, minX, maxX);
+                        positionsInSection = addAxisPositionTypes(positionsInSection, startY, endY, minY, maxY);
+                        positionsInSection = addAxisPositionTypes(positionsInSection, startZ, endZ, minZ, maxZ);
+                        int validEverywhere = positionsInSection;
+                        for (int i = 0; i < paletteSize; i++) {
+                            paletteValidPositions[i] = validPositions(snapshot.paletteEntry(i).getBlock(), validPositionsCache);
+                            validEverywhere &= paletteValidPositions[i];
                         }
-                    } else if (controller.exteriorValidator != null) {
-                        // oh, so you dont give a fuck about the frame either, do you even care are the exterior
-                        if (!controller.exteriorValidator.validate(block)) {
-                            throw new InvalidBlock(block, pos, "exterior");
-                        } else {
-                            break;
+                        if (validEverywhere == positionsInSection) {
+                            continue;
                         }
                     }
-                }
-                default: {
-                    if (extremes == 0) {
-                        if (block instanceof RectangularMultiblockBlock && blockTypeValidator.validate((RectangularMultiblockBlock<?, ?, ?>) block)) {
-                            if (!((RectangularMultiblockBlock<?, ?, ?>) block).isGoodForInterior()) {
-                                throw new InvalidBlock(block, pos, "interior");
-                            } else {
-                                break;
-                            }
-                        } else if (controller.interiorValidator != null) {
-                            // you must care about the inside, right?
-                            if (!controller.interiorValidator.validate(block)) {
-                                throw new InvalidBlock(block, pos, "interior");
-                            } else {
-                                break;
+                    
+                    for (int y = startY; y <= endY; y++) {
+                        int extremesY = (y == minY || y == maxY) ? 1 : 0;
+                        for (int z = startZ; z <= endZ; z++) {
+                            int extremesYZ = extremesY + ((z == minZ || z == maxZ) ? 1 : 0);
+                            for (int x = startX; x <= endX; x++) {
+                                int extremes = extremesYZ + ((x == minX || x == maxX) ? 1 : 0);
+                                int index = (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+                                int validPositions;
+                                if (paletteSize != 0) {
+                                    validPositions = paletteValidPositions[snapshot.paletteId(index)];
+                                } else {
+                                    validPositions = validPositions(snapshot.get(index).getBlock(), validPositionsCache);
+                                }
+                                if ((validPositions & (1 << extremes)) == 0) {
+                                    failScan(snapshot.get(index).getBlock(), x, y, z, extremes, result);
+                                    return result;
+                                }
                             }
                         }
                     }
-                    if (controller.genericValidator != null) {
-                        // anything at all?
-                        if (!controller.genericValidator.validate(block)) {
-                            throw new InvalidBlock(block, pos, "generic");
-                        } else {
-                            break;
-                        }
-                    }
-                    throw new InvalidBlock(block, pos, "generic");
                 }
             }
-        });
-        return true;
-    };
+        }
+        return result;
+    }
+    
+    /**
+     * Position types are a bitmask indexed by the number of extremes, bit 0 is the interior, bit 3 is a corner
+     *
+     * @param positionTypes position types possible with the axes added so far, start with 1
+     * @return position types possible once this axis is added
+     */
+    private static int addAxisPositionTypes(int positionTypes, int start, int end, int min, int max) {
+        // start and end are always inside min and max
+        int extremesInRange = (start == min ? 1 : 0) + (end == max && max != min ? 1 : 0);
+        boolean hasInner = end - start + 1 > extremesInRange;
+        return (hasInner ? positionTypes : 0) | (extremesInRange != 0 ? positionTypes << 1 : 0);
+    }
+    
+    /**
+     * @return bitmask of the position types the block is valid for, indexed by the number of extremes
+     */
+    private int validPositions(Block block, Object2IntOpenHashMap<Block> cache) {
+        int validPositions = cache.getInt(block);
+        if (validPositions == -1) {
+            validPositions = 0;
+            for (int extremes = 0; extremes <= 3; extremes++) {
+                if (checkBlock(block, extremes) == null) {
+                    validPositions |= 1 << extremes;
+                }
+            }
+            cache.put(block, validPositions);
+        }
+        return validPositions;
+    }
+    
+    private void failScan(Block block, int x, int y, int z, int extremes, ScanResult result) {
+        String failedAs = checkBlock(block, extremes);
+        assert failedAs != null;
+        result.errorPos = new Vector3i(x, y, z);
+        result.error = new InvalidBlock(block, result.errorPos, failedAs);
+    }
+    
+    /**
+     * Checks a block against the validators for a position, falling back to the less specific validators when one isn't set
+     *
+     * @param extremes how many axes the position is at the min or max of, 3 for corners, 0 for the interior
+     * @return null if the block is allowed, otherwise the position it failed as
+     */
+    @Nullable
+    private String checkBlock(Block block, int extremes) {
+        final boolean isMultiblockBlock = block instanceof RectangularMultiblockBlock && blockTypeValidator.validate((RectangularMultiblockBlock<?, ?, ?>) block);
+        if (extremes == 3) {
+            if (isMultiblockBlock) {
+                return ((RectangularMultiblockBlock<?, ?, ?>) block).isGoodForCorner() ? null : "corner";
+            } else if (cornerValidator != null) {
+                // can you be a corner?
+                return cornerValidator.validate(block) ? null : "corner";
+            }
+        }
+        if (extremes >= 2) {
+            if (isMultiblockBlock) {
+                return ((RectangularMultiblockBlock<?, ?, ?>) block).isGoodForFrame() ? null : "frame";
+            } else if (frameValidator != null) {
+                // dont care whats on the corners, but we do on the frame as a whole
+                return frameValidator.validate(block) ? null : "frame";
+            }
+        }
+        if (extremes >= 1) {
+            if (isMultiblockBlock) {
+                return ((RectangularMultiblockBlock<?, ?, ?>) block).isGoodForExterior() ? null : "exterior";
+            } else if (exteriorValidator != null) {
+                // oh, so you dont give a fuck about the frame either, do you even care are the exterior
+                return exteriorValidator.validate(block) ? null : "exterior";
+            }
+        } else {
+            if (isMultiblockBlock) {
+                return ((RectangularMultiblockBlock<?, ?, ?>) block).isGoodForInterior() ? null : "interior";
+            } else if (interiorValidator != null) {
+                // you must care about the inside, right?
+                return interiorValidator.validate(block) ? null : "interior";
+            }
+        }
+        if (genericValidator != null) {
+            // anything at all?
+            return genericValidator.validate(block) ? null : "generic";
+        }
+        return "generic";
+    }
     
     @Override
     protected final void setAssemblyValidator(@Nullable Validator<ControllerType> validator) {
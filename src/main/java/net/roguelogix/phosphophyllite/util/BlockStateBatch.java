@@ -0,0 +1,142 @@
+package net.roguelogix.phosphophyllite.util;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Arrays;
+
+/**
+ * Blockstate changes grouped by chunk section, applied a section at a time
+ * <p>
+ * each section is locked once for all of its changes, clients are sent them through the chunk holders, which already batch changes a section at a time
+ * like Util.setBlockStates, this writes straight to the section, no neighbor updates, no lighting, no block entity changes
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class BlockStateBatch {
+    
+    private static final class SectionChanges {
+        // index is SectionPos.sectionRelativePos layout, x << 8 | z << 4 | y, same as the packet
+        private short[] positions = new short[16];
+        private BlockState[] states = new BlockState[16];
+        private int count = 0;
+        
+        private void add(short position, BlockState state) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                states = Arrays.copyOf(states, count * 2);
+            }
+            positions[count] = position;
+            states[count] = state;
+            count++;
+        }
+    }
+    
+    private final Long2ObjectOpenHashMap<SectionChanges> sections = new Long2ObjectOpenHashMap<>();
+    private int size = 0;
+    
+    public void set(BlockPos pos, BlockState state) {
+        set(pos.getX(), pos.getY(), pos.getZ(), state);
+    }
+    
+    /**
+     * setting the same position twice applies both, in order
+     */
+    public void set(int x, int y, int z, BlockState state) {
+        long key = SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+        SectionChanges changes = sections.get(key);
+        if (changes == null) {
+            changes = new SectionChanges();
+            sections.put(key, changes);
+        }
+        changes.add((short) ((x & 15) << 8 | (z & 15) << 4 | (y & 15)), state);
+        size++;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public void clear() {
+        sections.clear();
+        size = 0;
+    }
+    
+    /**
+     * Writes every change to the world, changes in chunks that aren't loaded are dropped
+     * on a server, changed positions are handed to the chunk holders, sent along with the rest of the tick's block changes
+     */
+    public void apply(Level world) {
+        ServerLevel serverLevel = world instanceof ServerLevel ? (ServerLevel) world : null;
+        for (Long2ObjectMap.Entry<SectionChanges> entry : Long2ObjectMaps.fastIterable(sections)) {
+            long sectionPos = entry.getLongKey();
+            SectionChanges changes = entry.getValue();
+            LevelChunk chunk = world.getChunkSource().getChunkNow(SectionPos.x(sectionPos), SectionPos.z(sectionPos));
+            if (chunk == null) {
+                continue;
+            }
+            LevelChunkSection[] chunkSections = chunk.getSections();
+            int index = chunk.getSectionIndexFromSectionY(SectionPos.y(sectionPos));
+            if (index < 0 || index >= chunkSections.length) {
+                continue;
+            }
+            LevelChunkSection section = chunkSections[index];
+            if (section == null) {
+                continue;
+            }
+            short[] changed = new short[changes.count];
+            int changedCount = 0;
+            section.acquire();
+            try {
+                for (int i = 0; i < changes.count; i++) {
+                    short position = changes.positions[i];
+                    BlockState state = changes.states[i];
+                    BlockState oldState = section.setBlockState(position >> 8 & 15, position & 15, position >> 4 & 15, state, false);
+                    if (oldState != state) {
+                        changed[changedCount++] = position;
+                    }
+                }
+            } finally {
+                section.release();
+            }
+            if (changedCount == 0) {
+                continue;
+            }
+            chunk.markUnsaved();
+            int baseX = SectionPos.x(sectionPos) << 4;
+            int baseY = SectionPos.y(sectionPos) << 4;
+            int baseZ = SectionPos.z(sectionPos) << 4;
+            BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+            if (serverLevel != null) {
+                // the chunk holder sends these with its own batched section updates, block entity updates included
+                for (int i = 0; i < changedCount; i++) {
+                    short position = changed[i];
+                    pos.set(baseX | (position >> 8 & 15), baseY | (position & 15), baseZ | (position >> 4 & 15));
+                    serverLevel.getChunkSource().blockChanged(pos);
+                }
+            } else {
+                // client side, just needs to rerender
+                for (int i = 0; i < changes.count; i++) {
+                    short position = changes.positions[i];
+                    pos.set(baseX | (position >> 8 & 15), baseY | (position & 15), baseZ | (position >> 4 & 15));
+                    BlockState state = changes.states[i];
+                    world.sendBlockUpdated(pos, state, state, 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package net.roguelogix.phosphophyllite.util;
+
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongCollection;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.core.SectionPos;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.util.BitStorage;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.roguelogix.phosphophyllite.repack.org.joml.Vector3ic;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Immutable copy of the blockstates in a LevelChunkSection, safe to read from any thread
+ * <p>
+ * copied through the same encoding used to send the section to clients, so capturing one is a copy of the palette and the packed storage, not a walk of every block
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class ChunkSectionSnapshot {
+    
+    public static final ChunkSectionSnapshot EMPTY = new ChunkSectionSnapshot(new BlockState[]{Blocks.AIR.defaultBlockState()}, null);
+    
+    // null when the section uses the global palette
+    @Nullable
+    private final BlockState[] palette;
+    // null when every block is palette[0]
+    @Nullable
+    private final BitStorage storage;
+    
+    private ChunkSectionSnapshot(@Nullable BlockState[] palette, @Nullable BitStorage storage) {
+        this.palette = palette;
+        this.storage = storage;
+    }
+    
+    /**
+     * must be called from the thread that owns the section, usually the server thread
+     *
+     * @param section section to copy, null sections are all air
+     */
+    public static ChunkSectionSnapshot of(@Nullable LevelChunkSection section) {
+        if (section == null) {
+            return EMPTY;
+        }
+        FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.buffer(section.getSerializedSize()));
+        section.write(buf);
+        // non-empty block count
+        buf.readShort();
+        int bits = buf.readByte();
+        BlockState[] palette = null;
+        if (bits <= 8) {
+            palette = new BlockState[buf.readVarInt()];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = Block.BLOCK_STATE_REGISTRY.byId(buf.readVarInt());
+            }
+        }
+        long[] data = new long[buf.readVarInt()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = buf.readLong();
+        }
+        buf.release();
+        return new ChunkSectionSnapshot(palette, new BitStorage(bits, 4096, data));
+    }
+    
+    /**
+     * Snapshots every section that overlaps the given block range
+     * <p>
+     * sections that aren't loaded are left out, and read as air through {@link #get(Long2ObjectOpenHashMap, int, int, int)}
+     *
+     * @return snapshots keyed by SectionPos.asLong
+     */
+    public static Long2ObjectOpenHashMap<ChunkSectionSnapshot> captureRange(Level world, Vector3ic start, Vector3ic end) {
+        Long2ObjectOpenHashMap<ChunkSectionSnapshot> snapshots = new Long2ObjectOpenHashMap<>();
+        for (int sectionX = start.x() >> 4; sectionX <= end.x() >> 4; sectionX++) {
+            for (int sectionZ = start.z() >> 4; sectionZ <= end.z() >> 4; sectionZ++) {
+                ChunkAccess chunk = world.getChunk(sectionX, sectionZ, ChunkStatus.FULL, false);
+                if (chunk == null) {
+                    continue;
+                }
+                LevelChunkSection[] sections = chunk.getSections();
+                for (int sectionY = start.y() >> 4; sectionY <= end.y() >> 4; sectionY++) {
+                    int index = chunk.getSectionIndexFromSectionY(sectionY);
+                    if (index < 0 || index >= sections.length) {
+                        continue;
+                    }
+                    snapshots.put(SectionPos.asLong(sectionX, sectionY, sectionZ), of(sections[index]));
+                }
+            }
+        }
+        return snapshots;
+    }
+    
+    /**
+     * Snapshots only the given sections, unloaded ones are left out
+     *
+     * @param sections SectionPos.asLong of each section to capture
+     * @return snapshots keyed by SectionPos.asLong
+     */
+    public static Long2ObjectOpenHashMap<ChunkSectionSnapshot> captureSections(Level world, LongCollection sections) {
+        Long2ObjectOpenHashMap<ChunkSectionSnapshot> snapshots = new Long2ObjectOpenHashMap<>();
+        for (LongIterator iterator = sections.iterator(); iterator.hasNext(); ) {
+            long sectionPos = iterator.nextLong();
+            ChunkAccess chunk = world.getChunk(SectionPos.x(sectionPos), SectionPos.z(sectionPos), ChunkStatus.FULL, false);
+            if (chunk == null) {
+                continue;
+            }
+            LevelChunkSection[] chunkSections = chunk.getSections();
+            int index = chunk.getSectionIndexFromSectionY(SectionPos.y(sectionPos));
+            if (index < 0 || index >= chunkSections.length) {
+                continue;
+            }
+            snapshots.put(sectionPos, of(chunkSections[index]));
+        }
+        return snapshots;
+    }
+    
+    public static BlockState get(Long2ObjectOpenHashMap<ChunkSectionSnapshot> snapshots, int x, int y, int z) {
+        ChunkSectionSnapshot snapshot = snapshots.get(SectionPos.asLong(x >> 4, y >> 4, z >> 4));
+        if (snapshot == null) {
+            snapshot = EMPTY;
+        }
+        return snapshot.get(x & 15, y & 15, z & 15);
+    }
+    
+    /**
+     * @return number of entries in the section's palette, 0 if it uses the global palette
+     */
+    public int paletteSize() {
+        return palette == null ? 0 : palette.length;
+    }
+    
+    /**
+     * palette entries are never removed until the section is resized, so they may not all be in the section anymore
+     */
+    public BlockState paletteEntry(int id) {
+        assert palette != null;
+        return palette[id];
+    }
+    
+    /**
+     * @return index into the palette for the block, or its global id if the section uses the global palette
+     */
+    public int paletteId(int index) {
+        return storage == null ? 0 : storage.get(index);
+    }
+    
+    public BlockState get(int x, int y, int z) {
+        return get(y << 8 | z << 4 | x);
+    }
+    
+    public BlockState get(int index) {
+        if (storage == null) {
+            assert palette != null;
+            return palette[0];
+        }
+        int id = storage.get(index);
+        if (palette == null) {
+            return Block.BLOCK_STATE_REGISTRY.byId(id);
+        }
+        return palette[id];
+    }
+}
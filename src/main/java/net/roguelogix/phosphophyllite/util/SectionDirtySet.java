@@ -0,0 +1,140 @@
+package net.roguelogix.phosphophyllite.util;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.core.SectionPos;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Set of block positions, stored as a 4096 bit bitset per chunk section
+ * <p>
+ * not thread safe, but fine to read from another thread once it's no longer being written to
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class SectionDirtySet {
+    
+    public interface PositionVisitor {
+        /**
+         * @return false to stop visiting
+         */
+        boolean visit(int x, int y, int z);
+    }
+    
+    private final Long2ObjectOpenHashMap<long[]> sections = new Long2ObjectOpenHashMap<>();
+    private int size = 0;
+    
+    private static int index(int x, int y, int z) {
+        return (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+    }
+    
+    public void mark(int x, int y, int z) {
+        long sectionPos = SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+        long[] bits = sections.get(sectionPos);
+        if (bits == null) {
+            bits = new long[64];
+            sections.put(sectionPos, bits);
+        }
+        int index = index(x, y, z);
+        long mask = 1L << index;
+        if ((bits[index >> 6] & mask) == 0) {
+            bits[index >> 6] |= mask;
+            size++;
+        }
+    }
+    
+    /**
+     * Marks every position set in the bitset, same layout as the per section bitsets here, y << 8 | z << 4 | x
+     */
+    public void markAll(long sectionPos, long[] positions) {
+        long[] bits = sections.get(sectionPos);
+        if (bits == null) {
+            bits = new long[64];
+            sections.put(sectionPos, bits);
+        }
+        for (int i = 0; i < 64; i++) {
+            size += Long.bitCount(positions[i] & ~bits[i]);
+            bits[i] |= positions[i];
+        }
+    }
+    
+    public boolean contains(int x, int y, int z) {
+        long[] bits = sections.get(SectionPos.asLong(x >> 4, y >> 4, z >> 4));
+        if (bits == null) {
+            return false;
+        }
+        int index = index(x, y, z);
+        return (bits[index >> 6] & (1L << index)) != 0;
+    }
+    
+    public void addAll(SectionDirtySet other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        for (Long2ObjectMap.Entry<long[]> entry : Long2ObjectMaps.fastIterable(other.sections)) {
+            long[] otherBits = entry.getValue();
+            long[] bits = sections.get(entry.getLongKey());
+            if (bits == null) {
+                sections.put(entry.getLongKey(), otherBits.clone());
+                for (long word : otherBits) {
+                    size += Long.bitCount(word);
+                }
+                continue;
+            }
+            for (int i = 0; i < 64; i++) {
+                size += Long.bitCount(otherBits[i] & ~bits[i]);
+                bits[i] |= otherBits[i];
+            }
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public void clear() {
+        sections.clear();
+        size = 0;
+    }
+    
+    /**
+     * @return SectionPos.asLong of every section with at least one position in it
+     */
+    public LongSet sections() {
+        return sections.keySet();
+    }
+    
+    /**
+     * Visits every position in the set, grouped by section
+     *
+     * @return false if the visitor stopped early
+     */
+    public boolean forEach(PositionVisitor visitor) {
+        for (Long2ObjectMap.Entry<long[]> entry : Long2ObjectMaps.fastIterable(sections)) {
+            long sectionPos = entry.getLongKey();
+            int baseX = SectionPos.x(sectionPos) << 4;
+            int baseY = SectionPos.y(sectionPos) << 4;
+            int baseZ = SectionPos.z(sectionPos) << 4;
+            long[] bits = entry.getValue();
+            for (int i = 0; i < 64; i++) {
+                long word = bits[i];
+                while (word != 0) {
+                    int index = i << 6 | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    if (!visitor.visit(baseX | (index & 15), baseY | (index >> 8), baseZ | ((index >> 4) & 15))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,184 @@
+package net.roguelogix.phosphophyllite.util;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMaps;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/**
+ * Answers "is the structure still in one piece?" after blocks are removed from it
+ * <p>
+ * Every remaining neighbor of a removed block starts its own flood fill, and all of them are stepped in lockstep
+ * fills that touch are merged, a fill that runs out of blocks has found a complete piece that was cut off
+ * as soon as at most one fill is still running, the answer is known, so the bulk of the structure is never walked
+ * <p>
+ * if nothing split, the fills meet within a few blocks of the break
+ * if something did split, the work done is proportional to the size of the pieces that broke off, not the whole structure
+ * <p>
+ * relies on the structure having been connected before the removals were recorded
+ */
+@ParametersAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+public class SplitDetector {
+    
+    private static final Direction[] DIRECTIONS = Direction.values();
+    
+    private final LongPredicate isMember;
+    private final LongArrayList removedBlocks = new LongArrayList();
+    
+    /**
+     * @param isMember tests if a packed BlockPos is part of the structure
+     */
+    public SplitDetector(LongPredicate isMember) {
+        this.isMember = isMember;
+    }
+    
+    public void blockRemoved(long pos) {
+        removedBlocks.add(pos);
+    }
+    
+    public void clear() {
+        removedBlocks.clear();
+    }
+    
+    /**
+     * Checks if the blocks removed since the last call split the structure
+     * <p>
+     * the piece of the one fill still running once every other fill has finished or merged is left out of the returned list, and is treated as the remaining structure
+     * fills step in lockstep, so that is usually the biggest piece, but it isn't guaranteed to be
+     *
+     * @return the packed positions of each piece that is no longer connected to the rest of the structure, empty if it is still in one piece
+     */
+    public List<LongArrayList> detectSplits() {
+        final int maxGroups = removedBlocks.size() * DIRECTIONS.length;
+        final Long2IntOpenHashMap visited = new Long2IntOpenHashMap();
+        visited.defaultReturnValue(-1);
+        final int[] parent = new int[maxGroups];
+        final int[] size = new int[maxGroups];
+        final boolean[] finished = new boolean[maxGroups];
+        final LongArrayFIFOQueue[] frontiers = new LongArrayFIFOQueue[maxGroups];
+        
+        int groupCount = 0;
+        for (int i = 0; i < removedBlocks.size(); i++) {
+            long removed = removedBlocks.getLong(i);
+            for (Direction direction : DIRECTIONS) {
+                long neighbor = BlockPos.offset(removed, direction);
+                if (visited.containsKey(neighbor) || !isMember.test(neighbor)) {
+                    continue;
+                }
+                visited.put(neighbor, groupCount);
+                parent[groupCount] = groupCount;
+                size[groupCount] = 1;
+                frontiers[groupCount] = new LongArrayFIFOQueue();
+                frontiers[groupCount].enqueue(neighbor);
+                groupCount++;
+            }
+        }
+        removedBlocks.clear();
+        
+        // every piece left has to touch a removed block, so one group means one piece
+        if (groupCount <= 1) {
+            return new ArrayList<>();
+        }
+        
+        int[] active = new int[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            active[i] = i;
+        }
+        int activeCount = groupCount;
+        
+        while (activeCount > 1) {
+            int stillActive = 0;
+            for (int i = 0; i < activeCount; i++) {
+                int group = active[i];
+                if (parent[group] != group) {
+                    // merged into another group this round
+                    continue;
+                }
+                if (stillActive + (activeCount - i) <= 1) {
+                    // everything else has either finished or merged, no reason to keep going
+                    active[stillActive++] = group;
+                    continue;
+                }
+                LongArrayFIFOQueue frontier = frontiers[group];
+                if (frontier.isEmpty()) {
+                    finished[group] = true;
+                    continue;
+                }
+                long node = frontier.dequeueLong();
+                for (Direction direction : DIRECTIONS) {
+                    long neighbor = BlockPos.offset(node, direction);
+                    int label = visited.get(neighbor);
+                    if (label == -1) {
+                        if (isMember.test(neighbor)) {
+                            visited.put(neighbor, group);
+                            size[group]++;
+                            frontier.enqueue(neighbor);
+                        }
+                        continue;
+                    }
+                    int otherGroup = find(parent, label);
+                    if (otherGroup == group) {
+                        continue;
+                    }
+                    // two fills met, they are the same piece
+                    parent[otherGroup] = group;
+                    size[group] += size[otherGroup];
+                    LongArrayFIFOQueue otherFrontier = frontiers[otherGroup];
+                    frontiers[otherGroup] = null;
+                    if (otherFrontier.size() > frontier.size()) {
+                        LongArrayFIFOQueue swap = frontier;
+                        frontier = otherFrontier;
+                        otherFrontier = swap;
+                        frontiers[group] = frontier;
+                    }
+                    while (!otherFrontier.isEmpty()) {
+                        frontier.enqueue(otherFrontier.dequeueLong());
+                    }
+                }
+                active[stillActive++] = group;
+            }
+            activeCount = stillActive;
+        }
+        
+        // the last fill is never stepped to completion, so exactly one is left
+        int remainingGroup = find(parent, active[0]);
+        
+        final int[] pieceIndex = new int[groupCount];
+        final List<LongArrayList> pieces = new ArrayList<>();
+        for (int i = 0; i < groupCount; i++) {
+            pieceIndex[i] = -1;
+            if (parent[i] == i && finished[i] && i != remainingGroup) {
+                pieceIndex[i] = pieces.size();
+                pieces.add(new LongArrayList(size[i]));
+            }
+        }
+        if (pieces.isEmpty()) {
+            return pieces;
+        }
+        for (Long2IntMap.Entry entry : Long2IntMaps.fastIterable(visited)) {
+            int piece = pieceIndex[find(parent, entry.getIntValue())];
+            if (piece != -1) {
+                pieces.get(piece).add(entry.getLongKey());
+            }
+        }
+        return pieces;
+    }
+    
+    private static int find(int[] parent, int group) {
+        while (parent[group] != group) {
+            parent[group] = parent[parent[group]];
+            group = parent[group];
+        }
+        return group;
+    }
+}
@@ -1,102 +1,186 @@
 package net.roguelogix.phosphophyllite.util;
 
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMaps;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import net.minecraft.MethodsReturnNonnullByDefault;
 import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.block.entity.BlockEntity;
-import net.roguelogix.phosphophyllite.repack.org.joml.Vector3i;
 import net.roguelogix.phosphophyllite.repack.org.joml.Vector3ic;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
+/**
+ * Position to tile map, stored as a flat 4096 slot array per chunk section, keyed by SectionPos.asLong
+ * <p>
+ * lookups dont allocate or touch any shared scratch state, so reading from multiple threads is safe as long as nothing is writing
+ */
 @ParametersAreNonnullByDefault
 @MethodsReturnNonnullByDefault
 public class TileMap<TileType extends BlockEntity> {
-    private Vector3i scratchVector = new Vector3i();
     
-    private final LinkedHashMap<Vector3ic, BlockEntity[][][]> internalMap = new LinkedHashMap<>();
+    private static final class Section {
+        private final BlockEntity[] tiles = new BlockEntity[4096];
+        // bit set for each occupied slot, so iteration can skip over empty parts of the section
+        private final long[] occupancy = new long[64];
+        private int count = 0;
+        
+        private Section copy() {
+            Section copy = new Section();
+            System.arraycopy(tiles, 0, copy.tiles, 0, 4096);
+            System.arraycopy(occupancy, 0, copy.occupancy, 0, 64);
+            copy.count = count;
+            return copy;
+        }
+    }
+    
+    public interface SectionOccupancyConsumer {
+        /**
+         * @param occupancy bitset of occupied positions in the section, indexed y << 8 | z << 4 | x, dont modify or keep it
+         */
+        void accept(long sectionPos, long[] occupancy);
+    }
+    
+    private final Long2ObjectOpenHashMap<Section> sections = new Long2ObjectOpenHashMap<>();
+    // number of sections in each chunk column, keyed by ChunkPos.asLong, only changes when a section is added or removed
+    private final Long2IntOpenHashMap chunkSections = new Long2IntOpenHashMap();
     private int size = 0;
     
+    private static long sectionKey(int x, int y, int z) {
+        return SectionPos.asLong(x >> 4, y >> 4, z >> 4);
+    }
+    
+    private static int index(int x, int y, int z) {
+        return (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+    }
+    
+    private void sectionAdded(long sectionKey) {
+        chunkSections.addTo(ChunkPos.asLong(SectionPos.x(sectionKey), SectionPos.z(sectionKey)), 1);
+    }
+    
+    private void sectionRemoved(long sectionKey) {
+        long chunkKey = ChunkPos.asLong(SectionPos.x(sectionKey), SectionPos.z(sectionKey));
+        if (chunkSections.addTo(chunkKey, -1) == 1) {
+            chunkSections.remove(chunkKey);
+        }
+    }
+    
     public boolean addTile(TileType tile) {
         BlockPos tilePos = tile.getBlockPos();
-        scratchVector.set(tilePos.getX() >> 4, tilePos.getY() >> 4, tilePos.getZ() >> 4);
-        BlockEntity[][][] sectionArray = internalMap.computeIfAbsent(scratchVector, k -> {
-            // the previous scratch vector is now the key, no longer allowed to edit it, so, new one plx
-            scratchVector = new Vector3i(k);
-            return new BlockEntity[16][][];
-        });
-        BlockEntity[][] XsubSection = sectionArray[tilePos.getX() & 15];
-        if (XsubSection == null) {
-            XsubSection = new BlockEntity[16][];
-            sectionArray[tilePos.getX() & 15] = XsubSection;
-        }
-        BlockEntity[] XYsubSection = XsubSection[tilePos.getY() & 15];
-        if (XYsubSection == null) {
-            XYsubSection = new BlockEntity[16];
-            XsubSection[tilePos.getY() & 15] = XYsubSection;
+        int x = tilePos.getX(), y = tilePos.getY(), z = tilePos.getZ();
+        long key = sectionKey(x, y, z);
+        Section section = sections.get(key);
+        if (section == null) {
+            section = new Section();
+            sections.put(key, section);
+            sectionAdded(key);
         }
-        
-        BlockEntity prevVal = XYsubSection[tilePos.getZ() & 15];
-        XYsubSection[tilePos.getZ() & 15] = tile;
+        int index = index(x, y, z);
+        BlockEntity prevVal = section.tiles[index];
+        section.tiles[index] = tile;
         if (prevVal == null) {
+            section.occupancy[index >> 6] |= 1L << index;
+            section.count++;
             size++;
             return true;
         }
         return false;
     }
     
+    /**
+     * Adds every tile in the other map, a section at a time
+     * sections this map doesn't have yet are copied over whole, so this is mostly proportional to the number of sections
+     */
     public void addAll(TileMap<TileType> otherMap) {
-        otherMap.forEachTile(this::addTile);
+        for (Long2ObjectMap.Entry<Section> entry : Long2ObjectMaps.fastIterable(otherMap.sections)) {
+            Section otherSection = entry.getValue();
+            Section section = sections.get(entry.getLongKey());
+            if (section == null) {
+                sections.put(entry.getLongKey(), otherSection.copy());
+                sectionAdded(entry.getLongKey());
+                size += otherSection.count;
+                continue;
+            }
+            for (int i = 0; i < 64; i++) {
+                long word = otherSection.occupancy[i];
+                long newBits = word & ~section.occupancy[i];
+                section.occupancy[i] |= word;
+                section.count += Long.bitCount(newBits);
+                size += Long.bitCount(newBits);
+                while (word != 0) {
+                    int index = i << 6 | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    section.tiles[index] = otherSection.tiles[index];
+                }
+            }
+        }
+    }
+    
+    /**
+     * Moves every tile out of the other map, leaving it empty
+     * sections this map doesn't have yet are taken over as is rather than copied, so this is mostly proportional to the number of sections
+     *
+     * @param taken called for each tile taken, once all of them are in this map and before the other map is cleared
+     */
+    public void takeAll(TileMap<TileType> otherMap, @Nullable Consumer<TileType> taken) {
+        for (Long2ObjectMap.Entry<Section> entry : Long2ObjectMaps.fastIterable(otherMap.sections)) {
+            Section otherSection = entry.getValue();
+            Section section = sections.get(entry.getLongKey());
+            if (section == null) {
+                // the other map is cleared below, so the section is only ever reachable from this one
+                sections.put(entry.getLongKey(), otherSection);
+                sectionAdded(entry.getLongKey());
+                size += otherSection.count;
+                continue;
+            }
+            for (int i = 0; i < 64; i++) {
+                long word = otherSection.occupancy[i];
+                long newBits = word & ~section.occupancy[i];
+                section.occupancy[i] |= word;
+                section.count += Long.bitCount(newBits);
+                size += Long.bitCount(newBits);
+                while (word != 0) {
+                    int index = i << 6 | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    section.tiles[index] = otherSection.tiles[index];
+                }
+            }
+        }
+        if (taken != null) {
+            otherMap.forEachTile(taken);
+        }
+        otherMap.clear();
     }
     
     public boolean removeTile(TileType tile) {
         BlockPos tilePos = tile.getBlockPos();
-        scratchVector.set(tilePos.getX() >> 4, tilePos.getY() >> 4, tilePos.getZ() >> 4);
-        BlockEntity[][][] sectionArray = internalMap.get(scratchVector);
-        if (sectionArray == null) {
+        int x = tilePos.getX(), y = tilePos.getY(), z = tilePos.getZ();
+        long key = sectionKey(x, y, z);
+        Section section = sections.get(key);
+        if (section == null) {
             return false;
         }
-        BlockEntity[][] XsubSection = sectionArray[tilePos.getX() & 15];
-        if (XsubSection == null) {
+        int index = index(x, y, z);
+        if (section.tiles[index] == null) {
             return false;
         }
-        BlockEntity[] XYsubSection = XsubSection[tilePos.getY() & 15];
-        if (XYsubSection == null) {
-            return false;
-        }
-        
-        BlockEntity prevVal = XYsubSection[tilePos.getZ() & 15];
-        XYsubSection[tilePos.getZ() & 15] = null;
-        if (prevVal != null) {
-            size--;
-        }
-        
-        for (BlockEntity tileEntity : XYsubSection) {
-            if (tileEntity != null) {
-                return prevVal != null;
-            }
-        }
-        XsubSection[tilePos.getY() & 15] = null;
-        
-        for (BlockEntity[] tileEntities : XsubSection) {
-            if (tileEntities != null) {
-                return prevVal != null;
-            }
-        }
-        sectionArray[tilePos.getX() & 15] = null;
-        
-        for (BlockEntity[][] tileEntities : sectionArray) {
-            if (tileEntities != null) {
-                return prevVal != null;
-            }
+        section.tiles[index] = null;
+        section.occupancy[index >> 6] &= ~(1L << index);
+        size--;
+        if (--section.count == 0) {
+            sections.remove(key);
+            sectionRemoved(key);
         }
-        internalMap.remove(scratchVector);
-        
-        return prevVal != null;
+        return true;
     }
     
     public boolean containsTile(TileType tile) {
@@ -104,39 +188,39 @@ public class TileMap<TileType extends BlockEntity> {
     }
     
     public boolean containsPos(BlockPos pos) {
-        return getTile(pos) != null;
+        return getTile(pos.getX(), pos.getY(), pos.getZ()) != null;
     }
     
-    public boolean containsPos(Vector3i pos) {
-        return getTile(pos) != null;
+    public boolean containsPos(Vector3ic pos) {
+        return getTile(pos.x(), pos.y(), pos.z()) != null;
     }
     
     @Nullable
     public TileType getTile(Vector3ic pos) {
-        int x = pos.x(), y = pos.y(), z = pos.z();
-        scratchVector.set(pos.x() >> 4, pos.y() >> 4, pos.z() >> 4);
-        BlockEntity[][][] sectionArray = internalMap.get(scratchVector);
-        // getTile(BlockPos) passes the scratch vector in, so, i cant assume that pos isn't the scratchvector
-        if (sectionArray == null) {
-            return null;
-        }
-        BlockEntity[][] XsubSection = sectionArray[x & 15];
-        if (XsubSection == null) {
-            return null;
-        }
-        BlockEntity[] XYsubSection = XsubSection[y & 15];
-        if (XYsubSection == null) {
-            return null;
-        }
-        
-        //noinspection unchecked
-        return (TileType) XYsubSection[z & 15];
+        return getTile(pos.x(), pos.y(), pos.z());
     }
     
     @Nullable
     public TileType getTile(BlockPos pos) {
-        scratchVector.set(pos.getX(), pos.getY(), pos.getZ());
-        return getTile(scratchVector);
+        return getTile(pos.getX(), pos.getY(), pos.getZ());
+    }
+    
+    /**
+     * @param pos BlockPos.asLong packed position
+     */
+    @Nullable
+    public TileType getTile(long pos) {
+        return getTile(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos));
+    }
+    
+    @Nullable
+    public TileType getTile(int x, int y, int z) {
+        Section section = sections.get(sectionKey(x, y, z));
+        if (section == null) {
+            return null;
+        }
+        //noinspection unchecked
+        return (TileType) section.tiles[index(x, y, z)];
     }
     
     public void forEach(BiConsumer<BlockPos, TileType> consumer) {
@@ -144,31 +228,50 @@ public class TileMap<TileType extends BlockEntity> {
     }
     
     public void forEachTile(Consumer<TileType> consumer) {
-        internalMap.forEach((vec, sectionMap) -> {
-            for (int i = 0, sectionMapLength = sectionMap.length; i < sectionMapLength; i++) {
-                BlockEntity[][] tileEntities = sectionMap[i];
-                if (tileEntities != null) {
-                    for (int j = 0, tileEntitiesLength = tileEntities.length; j < tileEntitiesLength; j++) {
-                        BlockEntity[] tileEntity = tileEntities[j];
-                        if (tileEntity != null) {
-                            for (int k = 0, tileEntityLength = tileEntity.length; k < tileEntityLength; k++) {
-                                BlockEntity entity = tileEntity[k];
-                                if (entity != null) {
-                                    //noinspection unchecked
-                                    consumer.accept((TileType) entity);
-                                }
-                            }
-                        }
+        for (Long2ObjectMap.Entry<Section> entry : Long2ObjectMaps.fastIterable(sections)) {
+            Section section = entry.getValue();
+            long[] occupancy = section.occupancy;
+            BlockEntity[] tiles = section.tiles;
+            for (int i = 0; i < 64; i++) {
+                long word = occupancy[i];
+                while (word != 0) {
+                    BlockEntity tile = tiles[i << 6 | Long.numberOfTrailingZeros(word)];
+                    word &= word - 1;
+                    // the consumer may have removed it
+                    if (tile != null) {
+                        //noinspection unchecked
+                        consumer.accept((TileType) tile);
                     }
                 }
             }
-        });
+        }
     }
     
     public void forEachPos(Consumer<BlockPos> consumer) {
         forEachTile((t) -> consumer.accept(t.getBlockPos()));
     }
     
+    public void forEachSectionOccupancy(SectionOccupancyConsumer consumer) {
+        for (Long2ObjectMap.Entry<Section> entry : Long2ObjectMaps.fastIterable(sections)) {
+            consumer.accept(entry.getLongKey(), entry.getValue().occupancy);
+        }
+    }
+    
+    /**
+     * @param consumer gets the ChunkPos.asLong of every chunk with at least one tile in it
+     */
+    public void forEachChunk(LongConsumer consumer) {
+        for (Long2IntMap.Entry entry : Long2IntMaps.fastIterable(chunkSections)) {
+            consumer.accept(entry.getLongKey());
+        }
+    }
+    
+    public void clear() {
+        sections.clear();
+        chunkSections.clear();
+        size = 0;
+    }
+    
     public boolean isEmpty() {
         return size == 0;
     }
@@ -182,27 +285,13 @@ public class TileMap<TileType extends BlockEntity> {
         if (isEmpty()) {
             return null;
         }
-        Iterator<BlockEntity[][][]> iter = internalMap.values().iterator();
-        if (!iter.hasNext()) {
-            return null;
-        }
-        BlockEntity[][][] tiles = iter.next();
-        if (tiles == null) {
-            return null;
-        }
-        for (BlockEntity[][] tile2d : tiles) {
-            if (tile2d == null) {
-                continue;
-            }
-            for (BlockEntity[] tile1d : tile2d) {
-                if(tile1d == null){
-                    continue;
-                }
-                for (BlockEntity tileEntity : tile1d) {
-                    if(tileEntity != null){
-                        //noinspection unchecked
-                        return (TileType) tileEntity;
-                    }
+        for (Long2ObjectMap.Entry<Section> entry : Long2ObjectMaps.fastIterable(sections)) {
+            Section section = entry.getValue();
+            for (int i = 0; i < 64; i++) {
+                long word = section.occupancy[i];
+                if (word != 0) {
+                    //noinspection unchecked
+                    return (TileType) section.tiles[i << 6 | Long.numberOfTrailingZeros(word)];
                 }
             }
         }
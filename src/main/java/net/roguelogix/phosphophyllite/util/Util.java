@@ -20,7 +20,6 @@ import net.roguelogix.phosphophyllite.repack.org.joml.Vector3ic;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.function.BiConsumer;
 
@@ -105,29 +104,9 @@ public class Util {
     }
     
     public static void setBlockStates(Map<BlockPos, BlockState> newStates, Level world) {
-        HashMap<BlockPos, HashMap<BlockPos, BlockState>> stateChunks = new HashMap<>();
-        BlockPos.MutableBlockPos chunkPos = new BlockPos.MutableBlockPos();
-        newStates.forEach((pos, state) -> {
-            chunkPos.set(pos.getX() >> 4, 0, pos.getZ() >> 4);
-            HashMap<BlockPos, BlockState> chunksNewStates = stateChunks.get(chunkPos);
-            if (chunksNewStates == null) {
-                chunksNewStates = new HashMap<>();
-                stateChunks.put(chunkPos.immutable(), chunksNewStates);
-            }
-            chunksNewStates.put(pos, state);
-        });
-        stateChunks.forEach((cPos, states) -> {
-            LevelChunk chunk = world.getChunk(cPos.getX(), cPos.getZ());
-            LevelChunkSection[] chunkSections = chunk.getSections();
-            states.forEach((bPos, state) -> {
-                LevelChunkSection section = chunkSections[bPos.getY() >> 4];
-                if (section != null) {
-                    BlockState oldState = section.setBlockState(bPos.getX() & 15, bPos.getY() & 15, bPos.getZ() & 15, state);
-                    world.sendBlockUpdated(bPos, oldState, state, 0);
-                }
-            });
-            chunk.markUnsaved();
-        });
+        BlockStateBatch batch = new BlockStateBatch();
+        newStates.forEach(batch::set);
+        batch.apply(world);
     }
     
     public static Direction directionFromPositions(BlockPos reference, BlockPos neighbor) {